@@ -5,11 +5,13 @@ import com.github.rahmnathan.omdb.data.Movie;
 
 import javax.persistence.Entity;
 import javax.persistence.Id;
+import javax.persistence.Transient;
 import javax.persistence.Version;
 import java.util.Calendar;
 
 @Entity(name = "movies")
 public class MediaFile {
+    private static final String POSTER_URL = "/localmovies/v2/poster/";
 
     @Id
     private String path;
@@ -17,11 +19,14 @@ public class MediaFile {
     private long created;
     private int views;
     private Movie movie;
+    @Transient
+    private String posterHash;
     @Version
     @JsonIgnore
     private long version;
 
-    private MediaFile(String path, Movie movie, int views, String fileName) {
+    private MediaFile(String path, Movie movie, int views, String fileName, String posterHash) {
+        this.posterHash = posterHash;
         this.path = path;
         this.movie = movie;
         this.fileName = fileName;
@@ -61,6 +66,25 @@ public class MediaFile {
         this.movie = movie;
     }
 
+    /**
+     * @return - Content hash of the poster in the poster store, or null if there is no stored poster
+     */
+    public String getPosterHash() {
+        return posterHash;
+    }
+
+    /**
+     * @return - URL of the poster, which can be cached for as long as the hash is unchanged
+     */
+    public String getPosterUrl() {
+        return posterHash == null ? null : POSTER_URL + posterHash;
+    }
+
+    @JsonIgnore
+    public long getVersion() {
+        return version;
+    }
+
     @Override
     public String toString(){
         return movie.getTitle();
@@ -71,6 +95,9 @@ public class MediaFile {
         private String path;
         private int views;
         private Movie movieInfo;
+        private String posterHash;
+        private Long created;
+        private long version;
 
         public static Builder newInstance(){
             return new Builder();
@@ -96,8 +123,34 @@ public class MediaFile {
             return this;
         }
 
+        public Builder setPosterHash(String posterHash) {
+            this.posterHash = posterHash;
+            return this;
+        }
+
+        /**
+         * @param created - Creation time to restore, new instances default to the current time
+         */
+        public Builder setCreated(long created) {
+            this.created = created;
+            return this;
+        }
+
+        /**
+         * @param version - Persisted version to restore when rebuilding a stored instance
+         */
+        public Builder setVersion(long version) {
+            this.version = version;
+            return this;
+        }
+
         public MediaFile build(){
-            return new MediaFile(path, movieInfo, views, fileName);
+            MediaFile mediaFile = new MediaFile(path, movieInfo, views, fileName, posterHash);
+            if (created != null)
+                mediaFile.created = created;
+
+            mediaFile.version = version;
+            return mediaFile;
         }
 
         public static MediaFile copyWithNewTitle(MediaFile mediaFile, String fileName, String title, String path){
@@ -111,6 +164,7 @@ public class MediaFile {
             return Builder.newInstance()
                     .setFileName(fileName)
                     .setMovie(Movie.Builder.copyWithNewTitle(mediaFile.getMovie(), title))
+                    .setPosterHash(mediaFile.getPosterHash())
                     .setPath(path)
                     .build();
         }
@@ -126,5 +180,21 @@ public class MediaFile {
                     .setPath(mediaFile.getPath())
                     .build();
         }
+
+        /**
+         * Copy for caching, with the inline poster replaced by its hash in the poster store.
+         * Creation time and version are kept so sorting and validators are unaffected.
+         */
+        public static MediaFile copyWithPosterHash(MediaFile mediaFile, String posterHash){
+            return Builder.newInstance()
+                    .setFileName(mediaFile.getFileName())
+                    .setMovie(Movie.Builder.copyWithNoImage(mediaFile.getMovie()))
+                    .setPosterHash(posterHash)
+                    .setViews(mediaFile.getViews())
+                    .setPath(mediaFile.getPath())
+                    .setCreated(mediaFile.getCreated())
+                    .setVersion(mediaFile.getVersion())
+                    .build();
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,215 @@
+package com.github.rahmnathan.localmovie.domain;
+
+import java.io.File;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Path relative to the media roots, like "Series/Show/Season 1/Episode 1.mp4". Paths are interned, so every path
+ * exists once and is its parent path plus the name of its last segment, with segment names shared through the JVM's
+ * string table. Depth, parent, root and title are worked out when a path is first seen, and comparing paths compares
+ * references. Interning is weak: a path nothing holds anymore, like one deleted from the library, drops out of its
+ * parent's children once it's collected. Paths from requests are looked up with {@link #find(String)} rather than
+ * interned, so they never add to the table.
+ */
+public final class MediaPath {
+    private static final ReferenceQueue<MediaPath> COLLECTED = new ReferenceQueue<>();
+    private static final char SEPARATOR = File.separatorChar;
+
+    public static final MediaPath ROOT = new MediaPath(null, "", "");
+
+    private final MediaPath parent;
+    private final MediaPath root;
+    private final String name;
+    private final String title;
+    private final int depth;
+    private volatile Map<String, ChildReference> children;
+
+    private MediaPath(MediaPath parent, String name, String title) {
+        this.parent = parent;
+        this.name = name;
+        this.title = title;
+        this.depth = parent == null ? 0 : parent.depth + 1;
+        this.root = depth <= 1 ? this : parent.root;
+    }
+
+    /**
+     * @param path - Relative path, with empty segments ignored
+     * @return - The interned path
+     */
+    public static MediaPath of(String path) {
+        return parse(path, true);
+    }
+
+    /**
+     * @param path - Relative path, with empty segments ignored
+     * @return - The interned path, or null if the path hasn't been interned
+     */
+    public static MediaPath find(String path) {
+        return parse(path, false);
+    }
+
+    private static MediaPath parse(String path, boolean intern) {
+        MediaPath mediaPath = ROOT;
+        int start = 0;
+        while (start <= path.length() && mediaPath != null) {
+            int end = path.indexOf(SEPARATOR, start);
+            if (end < 0)
+                end = path.length();
+
+            if (end > start) {
+                String name = path.substring(start, end);
+                mediaPath = intern ? mediaPath.resolve(name) : mediaPath.child(name);
+            }
+
+            start = end + 1;
+        }
+
+        return mediaPath;
+    }
+
+    /**
+     * @param name - Name of a child of this path
+     * @return - The interned child path
+     */
+    public MediaPath resolve(String name) {
+        MediaPath child = child(name);
+        if (child != null)
+            return child;
+
+        removeCollected();
+        synchronized (this) {
+            child = child(name);
+            if (child == null) {
+                if (children == null)
+                    children = new ConcurrentHashMap<>();
+
+                String internedName = name.intern();
+                child = new MediaPath(this, internedName, titleOf(internedName).intern());
+                children.put(internedName, new ChildReference(child, this, internedName));
+            }
+
+            return child;
+        }
+    }
+
+    private MediaPath child(String name) {
+        Map<String, ChildReference> currentChildren = children;
+        ChildReference reference = currentChildren == null ? null : currentChildren.get(name);
+        return reference == null ? null : reference.get();
+    }
+
+    /**
+     * Clears the table entries of paths that have been collected
+     */
+    private static void removeCollected() {
+        Reference<? extends MediaPath> reference;
+        while ((reference = COLLECTED.poll()) != null) {
+            ChildReference child = (ChildReference) reference;
+            child.parent.children.remove(child.name, child);
+        }
+    }
+
+    /**
+     * @return - Number of segments, which is 1 for a media root like "Movies" and 2 for a movie or series
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return - The parent path, or null for {@link #ROOT}
+     */
+    public MediaPath getParent() {
+        return parent;
+    }
+
+    /**
+     * @return - The first segment of the path, like "Movies" or "Series"
+     */
+    public MediaPath getRoot() {
+        return root;
+    }
+
+    /**
+     * @param ancestorDepth - Depth of the ancestor
+     * @return - This path's ancestor at the depth, or this path if it isn't any deeper
+     */
+    public MediaPath getAncestor(int ancestorDepth) {
+        MediaPath ancestor = this;
+        while (ancestor.depth > ancestorDepth)
+            ancestor = ancestor.parent;
+
+        return ancestor;
+    }
+
+    /**
+     * @return - Whether this is a movie or series, directly under a media root
+     */
+    public boolean isTopLevel() {
+        return depth == 2;
+    }
+
+    public boolean startsWith(MediaPath ancestor) {
+        return ancestor.depth <= depth && getAncestor(ancestor.depth) == ancestor;
+    }
+
+    /**
+     * @return - Last segment of the path
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return - Last segment of the path without its file extension
+     */
+    public String getTitle() {
+        return title;
+    }
+
+    @Override
+    public String toString() {
+        if (parent == null)
+            return "";
+        if (parent.parent == null)
+            return getName();
+
+        StringBuilder path = new StringBuilder();
+        appendTo(path);
+        return path.toString();
+    }
+
+    private void appendTo(StringBuilder path) {
+        if (parent.parent != null) {
+            parent.appendTo(path);
+            path.append(SEPARATOR);
+        }
+
+        path.append(name);
+    }
+
+    /**
+     * Strips a three letter extension, so "Heat.mp4" is titled "Heat"
+     */
+    private static String titleOf(String name) {
+        if (name.length() > 4 && name.charAt(name.length() - 4) == '.')
+            return name.substring(0, name.length() - 4);
+
+        return name;
+    }
+
+    private static class ChildReference extends WeakReference<MediaPath> {
+        private final MediaPath parent;
+        private final String name;
+
+        private ChildReference(MediaPath child, MediaPath parent, String name) {
+            super(child, COLLECTED);
+            this.parent = parent;
+            this.name = name;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.github.rahmnathan.localmovie.domain;
+
+public enum PosterSize {
+    THUMBNAIL(160),
+    GRID(342),
+    DETAIL(780),
+    ORIGINAL(0);
+
+    private final int width;
+
+    PosterSize(int width) {
+        this.width = width;
+    }
+
+    /**
+     * @return - Target width in pixels, or 0 for the original image
+     */
+    public int getWidth() {
+        return width;
+    }
+}
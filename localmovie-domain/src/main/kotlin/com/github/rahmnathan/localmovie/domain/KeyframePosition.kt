@@ -0,0 +1,3 @@
+package com.github.rahmnathan.localmovie.domain
+
+data class KeyframePosition(val seconds: Double, val offset: Long)
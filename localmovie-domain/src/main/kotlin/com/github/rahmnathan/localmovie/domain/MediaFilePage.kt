@@ -0,0 +1,3 @@
+package com.github.rahmnathan.localmovie.domain
+
+data class MediaFilePage(val mediaFiles: List<MediaFile>, val nextCursor: String?)
@@ -1,4 +1,6 @@
 package com.github.rahmnathan.localmovie.domain
 
 data class MovieInfoRequest(val path: String, val page: Int?, val resultsPerPage: Int?, val client: MovieClient?,
-                               val order: MovieOrder?, val deviceId: String?, val pushToken: String?)
+                               val order: MovieOrder?, val deviceId: String?, val pushToken: String?,
+                               val yearFrom: Int? = null, val yearTo: Int? = null, val minRating: Float? = null,
+                               val genres: Set<String>? = null, val cursor: String? = null)
@@ -1,3 +1,6 @@
 package com.github.rahmnathan.localmovie.domain
 
-data class MovieSearchCriteria(val path: String, val page: Int?, val itemsPerPage: Int?, val client: MovieClient?, val order: MovieOrder?)
+data class MovieSearchCriteria @JvmOverloads constructor(val path: String, val page: Int?, val itemsPerPage: Int?, val client: MovieClient?,
+                                                         val order: MovieOrder?, val yearFrom: Int? = null, val yearTo: Int? = null,
+                                                         val minRating: Float? = null, val genres: Set<String>? = null,
+                                                         val cursor: String? = null)
@@ -0,0 +1,3 @@
+package com.github.rahmnathan.localmovie.domain
+
+data class PosterRequest(val hashes: List<String>, val size: PosterSize?)
@@ -0,0 +1,63 @@
+package com.github.rahmnathan.localmovie.domain;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class MediaPathTest {
+
+    @Test
+    public void getFileNameTest(){
+        String fileName = "test.mkv";
+        String dirName = "test";
+
+        Assertions.assertEquals(dirName, MediaPath.of(fileName).getTitle());
+        Assertions.assertEquals(dirName, MediaPath.of(dirName).getTitle());
+        Assertions.assertEquals(fileName, MediaPath.of(fileName).getName());
+    }
+
+    @Test
+    public void isTopLevelTest(){
+        String topLevelDir = "Series/Game of Thrones";
+        String nonTopLevelDir = "Series/Game of Thrones/Season 1";
+
+        Assertions.assertTrue(MediaPath.of(topLevelDir).isTopLevel());
+        Assertions.assertFalse(MediaPath.of(nonTopLevelDir).isTopLevel());
+    }
+
+    @Test
+    public void getParentFileTest(){
+        String originalDir = "Series/Game of Thrones/Season 1";
+        String originalFile = "Series/Game of Thrones/Season 1/Episode 1.mkv";
+
+        Assertions.assertEquals("Series/Game of Thrones", MediaPath.of(originalDir).getAncestor(2).toString());
+        Assertions.assertEquals("Series/Game of Thrones", MediaPath.of(originalFile).getAncestor(2).toString());
+        Assertions.assertEquals("Series", MediaPath.of(originalFile).getRoot().toString());
+    }
+
+    @Test
+    public void internTest(){
+        MediaPath season = MediaPath.of("Series/Game of Thrones/Season 1");
+
+        Assertions.assertSame(season, MediaPath.of("Series/Game of Thrones").resolve("Season 1"));
+        Assertions.assertSame(season, MediaPath.find("Series//Game of Thrones/Season 1/"));
+        Assertions.assertTrue(MediaPath.of("Series/Game of Thrones/Season 1/Episode 1.mkv").startsWith(season));
+        Assertions.assertNull(MediaPath.find("Series/Game of Thrones/Season 9"));
+    }
+
+    @Test
+    public void collectedTest() throws InterruptedException {
+        MediaPath show = MediaPath.of("Series/Deleted Show");
+        MediaPath.of("Series/Deleted Show/Season 1/Episode 1.mkv");
+
+        // Only the show is still held, so the paths under it can be collected
+        for (int attempt = 0; attempt < 50 && MediaPath.find("Series/Deleted Show/Season 1") != null; attempt++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+
+        Assertions.assertNull(MediaPath.find("Series/Deleted Show/Season 1/Episode 1.mkv"));
+        Assertions.assertNull(MediaPath.find("Series/Deleted Show/Season 1"));
+        Assertions.assertSame(show, MediaPath.find("Series/Deleted Show"));
+        Assertions.assertEquals("Series/Deleted Show/Season 1", MediaPath.of("Series/Deleted Show/Season 1").toString());
+    }
+}
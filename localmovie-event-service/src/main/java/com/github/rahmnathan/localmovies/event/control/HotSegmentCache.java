@@ -0,0 +1,200 @@
+package com.github.rahmnathan.localmovies.event.control;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the first bytes of each media file, plus its MP4 moov atom, in off-heap memory so that
+ * stream start-up and seeks back to the start don't wait on the disk. Directory events invalidate a file's
+ * segments when it is created again or deleted, and hits only check the file's size and modification time once the
+ * revalidation interval has passed, to catch changes no event was seen for.
+ */
+@Component
+public class HotSegmentCache {
+    private static final Counter HIT_COUNTER = Metrics.counter("localmovies.stream.cache.hit.counter");
+    private static final Counter MISS_COUNTER = Metrics.counter("localmovies.stream.cache.miss.counter");
+    private final Logger logger = LoggerFactory.getLogger(HotSegmentCache.class);
+    private final ExecutorService warmingExecutor = Executors.newSingleThreadExecutor();
+    private final Set<Path> pendingWarmups = ConcurrentHashMap.newKeySet();
+    private final Cache<Path, CachedSegments> segments;
+    private final long revalidateNanos;
+    private final int headSize;
+    private final boolean enabled;
+
+    public HotSegmentCache(@Value("${stream.cache.head.size:8388608}") int headSize,
+                           @Value("${stream.cache.max.size:536870912}") long maxSize,
+                           @Value("${stream.cache.revalidate.seconds:60}") long revalidateSeconds) {
+        logger.info("Stream segment cache - head size: {} max size: {} revalidate after: {}s", headSize, maxSize, revalidateSeconds);
+        this.enabled = headSize > 0 && maxSize > 0;
+        this.revalidateNanos = TimeUnit.SECONDS.toNanos(revalidateSeconds);
+        this.headSize = headSize;
+        this.segments = CacheBuilder.newBuilder()
+                .maximumWeight(Math.max(maxSize, 0))
+                .weigher((Path path, CachedSegments cachedSegments) -> cachedSegments.getWeight())
+                .build();
+    }
+
+    /**
+     * @param file - File being streamed
+     * @param position - Position of the first byte to be sent
+     * @return - A read-only buffer starting at the requested position, if that position is cached
+     */
+    public Optional<ByteBuffer> getSegment(Path file, long position) {
+        if (!enabled)
+            return Optional.empty();
+
+        CachedSegments cachedSegments = segments.getIfPresent(file);
+        if (cachedSegments != null && isCurrent(file, cachedSegments)) {
+            Optional<ByteBuffer> segment = cachedSegments.getSegment(position);
+            if (segment.isPresent()) {
+                HIT_COUNTER.increment();
+                return segment;
+            }
+        } else {
+            warmAsync(file);
+        }
+
+        MISS_COUNTER.increment();
+        return Optional.empty();
+    }
+
+    public void warmAsync(Path file) {
+        if (enabled && pendingWarmups.add(file)) {
+            warmingExecutor.submit(() -> {
+                try {
+                    warm(file);
+                } finally {
+                    pendingWarmups.remove(file);
+                }
+            });
+        }
+    }
+
+    public void invalidate(Path file) {
+        segments.invalidate(file);
+    }
+
+    private boolean isCurrent(Path file, CachedSegments cachedSegments) {
+        long now = System.nanoTime();
+        if (now - cachedSegments.validatedAt < revalidateNanos)
+            return true;
+
+        if (!cachedSegments.isCurrent(readAttributes(file)))
+            return false;
+
+        cachedSegments.validatedAt = now;
+        return true;
+    }
+
+    private void warm(Path file) {
+        BasicFileAttributes attributes = readAttributes(file);
+        if (attributes == null || !attributes.isRegularFile())
+            return;
+
+        CachedSegments existing = segments.getIfPresent(file);
+        if (existing != null && existing.isCurrent(attributes))
+            return;
+
+        logger.info("Warming stream cache - {}", file);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer head = read(channel, 0, (int) Math.min(headSize, attributes.size()));
+
+            long moovOffset = -1;
+            ByteBuffer moov = null;
+            Optional<Mp4Parser.Box> moovBox = Mp4Parser.findBox(Mp4Parser.readTopLevelBoxes(channel, attributes.size()), Mp4Parser.MOOV);
+            if (moovBox.isPresent() && moovBox.get().end() > head.capacity() && moovBox.get().size <= headSize) {
+                moovOffset = moovBox.get().offset;
+                moov = read(channel, moovOffset, (int) moovBox.get().size);
+            }
+
+            segments.put(file, new CachedSegments(attributes.size(), attributes.lastModifiedTime().toMillis(), head, moovOffset, moov));
+        } catch (IOException e) {
+            logger.error("Failure warming stream cache", e);
+        }
+    }
+
+    private ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                break;
+        }
+
+        buffer.flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    private BasicFileAttributes readAttributes(Path file) {
+        try {
+            return Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        warmingExecutor.shutdownNow();
+    }
+
+    private static class CachedSegments {
+        private final long fileSize;
+        private final long lastModified;
+        private final ByteBuffer head;
+        private final long moovOffset;
+        private final ByteBuffer moov;
+        private volatile long validatedAt = System.nanoTime();
+
+        private CachedSegments(long fileSize, long lastModified, ByteBuffer head, long moovOffset, ByteBuffer moov) {
+            this.lastModified = lastModified;
+            this.moovOffset = moovOffset;
+            this.fileSize = fileSize;
+            this.head = head;
+            this.moov = moov;
+        }
+
+        private boolean isCurrent(BasicFileAttributes attributes) {
+            return attributes != null && attributes.size() == fileSize && attributes.lastModifiedTime().toMillis() == lastModified;
+        }
+
+        private Optional<ByteBuffer> getSegment(long position) {
+            if (position < head.limit())
+                return Optional.of(slice(head, position));
+            if (moov != null && position >= moovOffset && position < moovOffset + moov.limit())
+                return Optional.of(slice(moov, position - moovOffset));
+
+            return Optional.empty();
+        }
+
+        private ByteBuffer slice(ByteBuffer buffer, long position) {
+            ByteBuffer slice = buffer.duplicate();
+            slice.position((int) position);
+            return slice.slice();
+        }
+
+        private int getWeight() {
+            return head.capacity() + (moov == null ? 0 : moov.capacity());
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.github.rahmnathan.localmovies.event.control;
+
+import com.github.rahmnathan.localmovies.event.data.KeyframeIndex;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Builds a keyframe index for each MP4 file once, persists it under the storage path and keeps recently used
+ * indexes in memory. Indexes are rebuilt when the file's size or modification time changes. Building reads the
+ * whole sample table, so it only ever happens on the indexing thread, either when a converted file is indexed or
+ * after a request found no current index. A file that fails to index isn't tried again until it changes.
+ */
+@Component
+public class KeyframeIndexer {
+    private static final Counter INDEX_COUNTER = Metrics.counter("localmovies.keyframe.index.counter");
+    private static final Counter FAILURE_COUNTER = Metrics.counter("localmovies.keyframe.index.failure.counter");
+    private final Logger logger = LoggerFactory.getLogger(KeyframeIndexer.class);
+    private final ExecutorService indexingExecutor = Executors.newSingleThreadExecutor();
+    private final Set<Path> pendingIndexes = ConcurrentHashMap.newKeySet();
+    private final Cache<Path, KeyframeIndex> indexes = CacheBuilder.newBuilder()
+            .maximumSize(200)
+            .build();
+    private final Cache<Path, Long> failedIndexes = CacheBuilder.newBuilder()
+            .maximumSize(1000)
+            .build();
+    private final Path indexDirectory;
+
+    public KeyframeIndexer(@Value("${storage.path:/opt/localmovies/storage}") String storagePath) {
+        this.indexDirectory = Paths.get(storagePath, "keyframes");
+        logger.info("Keyframe index directory: {}", indexDirectory);
+    }
+
+    /**
+     * @param file - MP4 file to look up
+     * @return - The file's keyframe index from memory or disk, or empty if it has none yet. A missing or outdated
+     * index is queued for building, and {@link #isPending(Path)} tells whether one is on the way.
+     */
+    public Optional<KeyframeIndex> getIndex(Path file) {
+        BasicFileAttributes attributes = readAttributes(file);
+        if (attributes == null || !attributes.isRegularFile())
+            return Optional.empty();
+
+        Optional<KeyframeIndex> index = findCurrentIndex(file, attributes);
+        if (!index.isPresent() && !hasFailed(file, attributes))
+            indexAsync(file);
+
+        return index;
+    }
+
+    /**
+     * @param file - MP4 file
+     * @return - Whether the file's index is queued or being built
+     */
+    public boolean isPending(Path file) {
+        return pendingIndexes.contains(file);
+    }
+
+    public void indexAsync(Path file) {
+        if (file.toString().endsWith(".mp4") && pendingIndexes.add(file)) {
+            indexingExecutor.submit(() -> {
+                try {
+                    index(file);
+                } finally {
+                    pendingIndexes.remove(file);
+                }
+            });
+        }
+    }
+
+    private void index(Path file) {
+        BasicFileAttributes attributes = readAttributes(file);
+        if (attributes == null || !attributes.isRegularFile() || hasFailed(file, attributes)
+                || findCurrentIndex(file, attributes).isPresent())
+            return;
+
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        KeyframeIndex index = buildIndex(file, attributes.size(), lastModified);
+        if (index == null) {
+            failedIndexes.put(file, lastModified);
+        } else {
+            failedIndexes.invalidate(file);
+            indexes.put(file, index);
+        }
+    }
+
+    private boolean hasFailed(Path file, BasicFileAttributes attributes) {
+        Long failedVersion = failedIndexes.getIfPresent(file);
+        return failedVersion != null && failedVersion == attributes.lastModifiedTime().toMillis();
+    }
+
+    private Optional<KeyframeIndex> findCurrentIndex(Path file, BasicFileAttributes attributes) {
+        long size = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+
+        KeyframeIndex index = indexes.getIfPresent(file);
+        if (index != null && index.isCurrent(size, lastModified))
+            return Optional.of(index);
+
+        Optional<KeyframeIndex> persisted = loadIndex(file).filter(loaded -> loaded.isCurrent(size, lastModified));
+        persisted.ifPresent(loaded -> indexes.put(file, loaded));
+        return persisted;
+    }
+
+    public void invalidate(Path file) {
+        indexes.invalidate(file);
+        failedIndexes.invalidate(file);
+        try {
+            Files.deleteIfExists(indexFile(file));
+        } catch (IOException e) {
+            logger.error("Failure deleting keyframe index", e);
+        }
+    }
+
+    private KeyframeIndex buildIndex(Path file, long size, long lastModified) {
+        logger.info("Building keyframe index - {}", file);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            KeyframeIndex index = Mp4Parser.parse(channel, size, lastModified);
+            INDEX_COUNTER.increment();
+            saveIndex(file, index);
+            return index;
+        } catch (IOException | RuntimeException e) {
+            logger.error("Failure building keyframe index for " + file, e);
+            FAILURE_COUNTER.increment();
+            return null;
+        }
+    }
+
+    private Optional<KeyframeIndex> loadIndex(Path file) {
+        Path indexFile = indexFile(file);
+        if (!Files.exists(indexFile))
+            return Optional.empty();
+
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            return Optional.of(KeyframeIndex.readFrom(input));
+        } catch (IOException e) {
+            logger.error("Failure reading keyframe index", e);
+            return Optional.empty();
+        }
+    }
+
+    private void saveIndex(Path file, KeyframeIndex index) {
+        Path indexFile = indexFile(file);
+        Path tempFile = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(indexDirectory);
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+                index.writeTo(output);
+            }
+            Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.error("Failure saving keyframe index", e);
+        }
+    }
+
+    private Path indexFile(Path file) {
+        String name = Hashing.sha256().hashString(file.toAbsolutePath().toString(), StandardCharsets.UTF_8).toString();
+        return indexDirectory.resolve(name + ".idx");
+    }
+
+    private BasicFileAttributes readAttributes(Path file) {
+        try {
+            return Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        indexingExecutor.shutdownNow();
+    }
+}
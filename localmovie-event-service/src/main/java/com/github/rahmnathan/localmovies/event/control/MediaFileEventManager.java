@@ -5,6 +5,7 @@ import com.github.rahmnathan.localmovie.domain.MediaFile;
 import com.github.rahmnathan.localmovie.domain.MediaFileEvent;
 import com.github.rahmnathan.localmovie.domain.MovieEvent;
 import com.github.rahmnathan.localmovies.event.repository.MediaEventRepository;
+import com.github.rahmnathan.localmovie.service.boundary.FileListProvider;
 import com.github.rahmnathan.localmovie.service.boundary.MediaMetadataService;
 import com.github.rahmnathan.video.cast.handbrake.control.VideoController;
 import com.github.rahmnathan.video.cast.handbrake.data.SimpleConversionJob;
@@ -23,6 +24,7 @@ import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -37,17 +39,24 @@ public class MediaFileEventManager implements DirectoryMonitorObserver {
     private final PushNotificationHandler notificationHandler;
     private final MediaMetadataService metadataService;
     private final MediaEventRepository eventRepository;
+    private final FileListProvider fileListProvider;
+    private final HotSegmentCache segmentCache;
+    private final KeyframeIndexer keyframeIndexer;
     private final ExecutorService executorService;
     private FFprobe ffprobe;
 
     public MediaFileEventManager(@Value("${ffprobe.location:/usr/bin/ffprobe}") String ffprobeLocation, @Value("${concurrent.conversion.limit:1}") Integer concurrentConversions,
                                  MediaMetadataService mediaMetadataService, MediaEventRepository eventRepository,
-                                 PushNotificationHandler notificationHandler) {
+                                 PushNotificationHandler notificationHandler, HotSegmentCache segmentCache,
+                                 KeyframeIndexer keyframeIndexer, FileListProvider fileListProvider) {
         logger.info("Number of concurrent video conversions allowed: {}", concurrentConversions);
         this.executorService = Executors.newFixedThreadPool(concurrentConversions);
         this.notificationHandler = notificationHandler;
         this.metadataService = mediaMetadataService;
         this.eventRepository = eventRepository;
+        this.segmentCache = segmentCache;
+        this.keyframeIndexer = keyframeIndexer;
+        this.fileListProvider = fileListProvider;
 
         eventRepository.findAll().forEach(mediaFileEvents::add);
 
@@ -60,7 +69,13 @@ public class MediaFileEventManager implements DirectoryMonitorObserver {
 
     @Override
     public void directoryModified(WatchEvent event, Path absolutePath) {
-        String relativePath = absolutePath.toString().split("/LocalMedia/")[1];
+        Optional<String> mediaPath = fileListProvider.relativize(absolutePath);
+        if (!mediaPath.isPresent()) {
+            logger.warn("Ignoring event outside of the media paths - {}", absolutePath);
+            return;
+        }
+
+        String relativePath = mediaPath.get();
         MDC.put("Path", relativePath);
         logger.info("Detected movie event.");
 
@@ -80,14 +95,24 @@ public class MediaFileEventManager implements DirectoryMonitorObserver {
                     }
                 }
 
+                // Also covers files that needed no conversion, and files replaced under the same name
+                Path resultFile = Paths.get(resultFilePath);
+                if (Files.isRegularFile(resultFile)) {
+                    segmentCache.invalidate(resultFile);
+                    segmentCache.warmAsync(resultFile);
+                    keyframeIndexer.indexAsync(resultFile);
+                }
+
                 metadataService.addMediaMetadata(relativePath);
                 mediaFile = getMediaFile(event, relativePath);
                 notificationHandler.sendPushNotifications(mediaFile.getMovie().getTitle(), mediaFile.getPath());
             } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE){
                 metadataService.deleteMediaMetadata(relativePath);
+                segmentCache.invalidate(absolutePath);
+                keyframeIndexer.invalidate(absolutePath);
             }
 
-            addEvent(event, mediaFile, resultFilePath);
+            addEvent(event, mediaFile, fileListProvider.relativize(Paths.get(resultFilePath)).orElse(relativePath));
         }
     }
 
@@ -100,9 +125,9 @@ public class MediaFileEventManager implements DirectoryMonitorObserver {
         return mediaFile;
     }
 
-    private void addEvent(WatchEvent watchEvent, MediaFile mediaFile, String resultFilePath){
+    private void addEvent(WatchEvent watchEvent, MediaFile mediaFile, String relativePath){
         logger.info("Adding event to repository.");
-        MediaFileEvent event = new MediaFileEvent(MovieEvent.valueOf(watchEvent.kind().name()).getMovieEventString(), mediaFile, resultFilePath.split("/LocalMedia/")[1]);
+        MediaFileEvent event = new MediaFileEvent(MovieEvent.valueOf(watchEvent.kind().name()).getMovieEventString(), mediaFile, relativePath);
         mediaFileEvents.add(event);
         eventRepository.save(event);
     }
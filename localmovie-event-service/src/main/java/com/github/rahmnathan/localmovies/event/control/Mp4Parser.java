@@ -0,0 +1,296 @@
+package com.github.rahmnathan.localmovies.event.control;
+
+import com.github.rahmnathan.localmovies.event.data.KeyframeIndex;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Reads the keyframe positions of a progressive MP4 file from its sample tables without decoding any media.
+ */
+class Mp4Parser {
+    private static final int MAX_MOOV_SIZE = 256 * 1024 * 1024;
+    static final int MOOV = boxType("moov");
+    private static final int MOOF = boxType("moof");
+    private static final int TRAK = boxType("trak");
+    private static final int TKHD = boxType("tkhd");
+    private static final int MDIA = boxType("mdia");
+    private static final int MDHD = boxType("mdhd");
+    private static final int HDLR = boxType("hdlr");
+    private static final int MINF = boxType("minf");
+    private static final int STBL = boxType("stbl");
+    private static final int STTS = boxType("stts");
+    private static final int STSS = boxType("stss");
+    private static final int STSC = boxType("stsc");
+    private static final int STSZ = boxType("stsz");
+    private static final int STCO = boxType("stco");
+    private static final int CO64 = boxType("co64");
+    private static final int VIDE = boxType("vide");
+
+    private Mp4Parser(){
+        // No need to instantiate this
+    }
+
+    static KeyframeIndex parse(FileChannel channel, long fileSize, long lastModified) throws IOException {
+        List<Box> topLevelBoxes = readTopLevelBoxes(channel, fileSize);
+        Box moovBox = findBox(topLevelBoxes, MOOV)
+                .orElseThrow(() -> new IOException("No moov box found"));
+        if (moovBox.size > MAX_MOOV_SIZE)
+            throw new IOException("moov box too large: " + moovBox.size);
+
+        ByteBuffer moov = read(channel, moovBox.offset, (int) moovBox.size);
+        Track track = findVideoTrack(moov)
+                .orElseThrow(() -> new IOException("No video track found"));
+
+        // The converter writes progressive files - fragmented ones keep their samples outside the sample tables
+        if (findBox(topLevelBoxes, MOOF).isPresent())
+            throw new IOException("Fragmented files aren't indexed");
+
+        return parseSampleTables(moov, track, fileSize, lastModified);
+    }
+
+    static List<Box> readTopLevelBoxes(FileChannel channel, long fileSize) throws IOException {
+        List<Box> boxes = new ArrayList<>();
+        ByteBuffer header = ByteBuffer.allocate(16);
+        long offset = 0;
+        while (offset + 8 <= fileSize) {
+            header.clear();
+            channel.read(header, offset);
+            header.flip();
+            if (header.remaining() < 8)
+                break;
+
+            Box box = readBoxHeader(header, offset, fileSize - offset);
+            if (box == null)
+                break;
+
+            boxes.add(box);
+            offset += box.size;
+        }
+
+        return boxes;
+    }
+
+    static Optional<Box> findBox(List<Box> boxes, int type) {
+        return boxes.stream().filter(box -> box.type == type).findFirst();
+    }
+
+    private static KeyframeIndex parseSampleTables(ByteBuffer moov, Track track, long fileSize, long lastModified) throws IOException {
+        Box stbl = track.stbl;
+        Box stts = child(moov, stbl, STTS).orElseThrow(() -> new IOException("No stts box found"));
+        Box stsc = child(moov, stbl, STSC).orElseThrow(() -> new IOException("No stsc box found"));
+        Box stsz = child(moov, stbl, STSZ).orElseThrow(() -> new IOException("No stsz box found"));
+        Optional<Box> stss = child(moov, stbl, STSS);
+        Optional<Box> stco = child(moov, stbl, STCO);
+        Optional<Box> co64 = child(moov, stbl, CO64);
+        if (!stco.isPresent() && !co64.isPresent())
+            throw new IOException("No chunk offset box found");
+
+        // Chunk offsets
+        long[] chunkOffsets;
+        if (stco.isPresent()) {
+            int position = fullBoxContent(stco.get());
+            chunkOffsets = new long[moov.getInt(position)];
+            for (int i = 0; i < chunkOffsets.length; i++)
+                chunkOffsets[i] = moov.getInt(position + 4 + i * 4) & 0xFFFFFFFFL;
+        } else {
+            int position = fullBoxContent(co64.get());
+            chunkOffsets = new long[moov.getInt(position)];
+            for (int i = 0; i < chunkOffsets.length; i++)
+                chunkOffsets[i] = moov.getLong(position + 4 + i * 8);
+        }
+
+        // Sample sizes
+        int stszPosition = fullBoxContent(stsz);
+        int constantSampleSize = moov.getInt(stszPosition);
+        int sampleCount = moov.getInt(stszPosition + 4);
+
+        // Sample to chunk runs
+        int stscPosition = fullBoxContent(stsc);
+        int stscEntries = moov.getInt(stscPosition);
+
+        // Time to sample runs
+        int sttsPosition = fullBoxContent(stts) + 4;
+        int sttsRemaining = moov.getInt(sttsPosition - 4) > 0 ? moov.getInt(sttsPosition) : 0;
+        int sttsDelta = moov.getInt(sttsPosition - 4) > 0 ? moov.getInt(sttsPosition + 4) : 0;
+
+        // Sync samples - every sample is a keyframe if there is no stss box
+        int stssPosition = stss.map(box -> fullBoxContent(box) + 4).orElse(-1);
+        int stssEntries = stss.map(box -> moov.getInt(fullBoxContent(box))).orElse(0);
+        int stssIndex = 0;
+
+        // At most one keyframe per sample, trimmed to the count found once the tables are walked
+        int keyframeCapacity = Math.max(0, stssPosition < 0 ? sampleCount : Math.min(stssEntries, sampleCount));
+        double[] keyframeTimes = new double[keyframeCapacity];
+        long[] keyframeOffsets = new long[keyframeCapacity];
+        int keyframeCount = 0;
+        long sampleTime = 0;
+        int sample = 1;
+        int stscIndex = 0;
+        for (int chunk = 1; chunk <= chunkOffsets.length && sample <= sampleCount; chunk++) {
+            while (stscIndex + 1 < stscEntries && moov.getInt(stscPosition + 4 + (stscIndex + 1) * 12) <= chunk)
+                stscIndex++;
+
+            int samplesPerChunk = moov.getInt(stscPosition + 4 + stscIndex * 12 + 4);
+            long offset = chunkOffsets[chunk - 1];
+            for (int i = 0; i < samplesPerChunk && sample <= sampleCount; i++, sample++) {
+                boolean sync = stssPosition < 0;
+                while (!sync && stssIndex < stssEntries && moov.getInt(stssPosition + stssIndex * 4) < sample)
+                    stssIndex++;
+                if (!sync && stssIndex < stssEntries && moov.getInt(stssPosition + stssIndex * 4) == sample)
+                    sync = true;
+
+                if (sync && keyframeCount < keyframeCapacity) {
+                    keyframeTimes[keyframeCount] = (double) sampleTime / track.timescale;
+                    keyframeOffsets[keyframeCount++] = offset;
+                }
+
+                offset += constantSampleSize != 0 ? constantSampleSize : moov.getInt(stszPosition + 8 + (sample - 1) * 4) & 0xFFFFFFFFL;
+
+                sampleTime += sttsDelta;
+                if (--sttsRemaining == 0 && sttsPosition + 16 <= stts.end()) {
+                    sttsPosition += 8;
+                    sttsRemaining = moov.getInt(sttsPosition);
+                    sttsDelta = moov.getInt(sttsPosition + 4);
+                }
+            }
+        }
+
+        return new KeyframeIndex(fileSize, lastModified, (double) sampleTime / track.timescale,
+                Arrays.copyOf(keyframeTimes, keyframeCount), Arrays.copyOf(keyframeOffsets, keyframeCount));
+    }
+
+    private static Optional<Track> findVideoTrack(ByteBuffer moov) {
+        for (Box trak : children(moov, new Box(MOOV, 0, moov.limit(), 8))) {
+            if (trak.type != TRAK)
+                continue;
+
+            Optional<Box> mdia = child(moov, trak, MDIA);
+            Optional<Box> hdlr = mdia.flatMap(box -> child(moov, box, HDLR));
+            if (!hdlr.isPresent() || moov.getInt(fullBoxContent(hdlr.get()) + 4) != VIDE)
+                continue;
+
+            Optional<Box> tkhd = child(moov, trak, TKHD);
+            Optional<Box> mdhd = child(moov, mdia.get(), MDHD);
+            Optional<Box> stbl = child(moov, mdia.get(), MINF).flatMap(box -> child(moov, box, STBL));
+            if (!tkhd.isPresent() || !mdhd.isPresent() || !stbl.isPresent())
+                continue;
+
+            boolean tkhdVersion1 = moov.get((int) tkhd.get().contentOffset()) == 1;
+            int trackId = moov.getInt(fullBoxContent(tkhd.get()) + (tkhdVersion1 ? 16 : 8));
+
+            boolean mdhdVersion1 = moov.get((int) mdhd.get().contentOffset()) == 1;
+            long timescale = moov.getInt(fullBoxContent(mdhd.get()) + (mdhdVersion1 ? 16 : 8)) & 0xFFFFFFFFL;
+            if (timescale == 0)
+                continue;
+
+            return Optional.of(new Track(trackId, timescale, stbl.get()));
+        }
+
+        return Optional.empty();
+    }
+
+    private static List<Box> children(ByteBuffer buffer, Box parent) {
+        List<Box> children = new ArrayList<>();
+        long offset = parent.contentOffset();
+        while (offset + 8 <= parent.end()) {
+            ByteBuffer header = buffer.duplicate();
+            header.position((int) offset);
+            header.limit((int) Math.min(parent.end(), offset + 16));
+
+            Box box = readBoxHeader(header.slice(), offset, parent.end() - offset);
+            if (box == null)
+                break;
+
+            children.add(box);
+            offset += box.size;
+        }
+
+        return children;
+    }
+
+    private static Optional<Box> child(ByteBuffer buffer, Box parent, int type) {
+        return findBox(children(buffer, parent), type);
+    }
+
+    private static Box readBoxHeader(ByteBuffer header, long offset, long remaining) {
+        long size = header.getInt() & 0xFFFFFFFFL;
+        int type = header.getInt();
+        int headerSize = 8;
+        if (size == 1) {
+            if (header.remaining() < 8)
+                return null;
+
+            size = header.getLong();
+            headerSize = 16;
+        } else if (size == 0) {
+            size = remaining;
+        }
+
+        if (size < headerSize || size > remaining)
+            return null;
+
+        return new Box(type, offset, size, headerSize);
+    }
+
+    /**
+     * @return - Position of a full box's content, after its version and flags
+     */
+    private static int fullBoxContent(Box box) {
+        return (int) box.contentOffset() + 4;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("Unexpected end of file at " + (position + buffer.position()));
+        }
+
+        buffer.flip();
+        return buffer;
+    }
+
+    private static int boxType(String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+    }
+
+    static class Box {
+        final int type;
+        final long offset;
+        final long size;
+        final int headerSize;
+
+        Box(int type, long offset, long size, int headerSize) {
+            this.type = type;
+            this.offset = offset;
+            this.size = size;
+            this.headerSize = headerSize;
+        }
+
+        long contentOffset() {
+            return offset + headerSize;
+        }
+
+        long end() {
+            return offset + size;
+        }
+    }
+
+    private static class Track {
+        private final int trackId;
+        private final long timescale;
+        private final Box stbl;
+
+        private Track(int trackId, long timescale, Box stbl) {
+            this.trackId = trackId;
+            this.timescale = timescale;
+            this.stbl = stbl;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.github.rahmnathan.localmovies.event.data;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Keyframe positions of an MP4 file
+ */
+public class KeyframeIndex {
+    private static final int FORMAT_VERSION = 2;
+    private final long fileSize;
+    private final long lastModified;
+    private final double duration;
+    private final double[] keyframeTimes;
+    private final long[] keyframeOffsets;
+
+    public KeyframeIndex(long fileSize, long lastModified, double duration, double[] keyframeTimes, long[] keyframeOffsets) {
+        this.fileSize = fileSize;
+        this.lastModified = lastModified;
+        this.duration = duration;
+        this.keyframeTimes = keyframeTimes;
+        this.keyframeOffsets = keyframeOffsets;
+    }
+
+    public boolean isCurrent(long fileSize, long lastModified) {
+        return this.fileSize == fileSize && this.lastModified == lastModified;
+    }
+
+    public double getDuration() {
+        return duration;
+    }
+
+    public int getKeyframeCount() {
+        return keyframeTimes.length;
+    }
+
+    public double getKeyframeTime(int keyframe) {
+        return keyframeTimes[keyframe];
+    }
+
+    public long getKeyframeOffset(int keyframe) {
+        return keyframeOffsets[keyframe];
+    }
+
+    /**
+     * @return - The last keyframe at or before the given time, or -1 if the file has no keyframes
+     */
+    public int findKeyframe(double seconds) {
+        if (keyframeTimes.length == 0)
+            return -1;
+
+        int index = Arrays.binarySearch(keyframeTimes, seconds);
+        if (index >= 0)
+            return index;
+
+        return Math.max(0, -index - 2);
+    }
+
+    public void writeTo(DataOutputStream output) throws IOException {
+        output.writeInt(FORMAT_VERSION);
+        output.writeLong(fileSize);
+        output.writeLong(lastModified);
+        output.writeDouble(duration);
+
+        output.writeInt(keyframeTimes.length);
+        for (int i = 0; i < keyframeTimes.length; i++) {
+            output.writeDouble(keyframeTimes[i]);
+            output.writeLong(keyframeOffsets[i]);
+        }
+    }
+
+    public static KeyframeIndex readFrom(DataInputStream input) throws IOException {
+        if (input.readInt() != FORMAT_VERSION)
+            throw new IOException("Unsupported keyframe index version");
+
+        long fileSize = input.readLong();
+        long lastModified = input.readLong();
+        double duration = input.readDouble();
+
+        int keyframeCount = input.readInt();
+        double[] keyframeTimes = new double[keyframeCount];
+        long[] keyframeOffsets = new long[keyframeCount];
+        for (int i = 0; i < keyframeCount; i++) {
+            keyframeTimes[i] = input.readDouble();
+            keyframeOffsets[i] = input.readLong();
+        }
+
+        return new KeyframeIndex(fileSize, lastModified, duration, keyframeTimes, keyframeOffsets);
+    }
+}
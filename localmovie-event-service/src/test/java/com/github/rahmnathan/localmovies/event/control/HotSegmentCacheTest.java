@@ -0,0 +1,54 @@
+package com.github.rahmnathan.localmovies.event.control;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Optional;
+
+public class HotSegmentCacheTest {
+    private HotSegmentCache segmentCache;
+    private Path file;
+
+    @Before
+    public void initialize() throws IOException {
+        segmentCache = new HotSegmentCache(1024, 1024 * 1024, 3600);
+        file = Files.createTempFile("movie", ".mkv");
+        Files.write(file, new byte[]{1, 2, 3, 4});
+    }
+
+    @After
+    public void shutdown() {
+        segmentCache.shutdown();
+    }
+
+    @Test
+    public void invalidateTest() throws IOException, InterruptedException {
+        Assert.assertEquals(1, awaitSegment(0).get().get());
+
+        // Within the revalidation interval a hit doesn't look at the file, so only the event drops the old bytes
+        Files.write(file, new byte[]{5, 6, 7, 8, 9});
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 10_000));
+        Assert.assertEquals(1, segmentCache.getSegment(file, 0).get().get());
+
+        segmentCache.invalidate(file);
+        segmentCache.warmAsync(file);
+        Assert.assertEquals(5, awaitSegment(0).get().get());
+    }
+
+    private Optional<ByteBuffer> awaitSegment(long position) throws InterruptedException {
+        Optional<ByteBuffer> segment = segmentCache.getSegment(file, position);
+        for (int i = 0; i < 100 && !segment.isPresent(); i++) {
+            Thread.sleep(50);
+            segment = segmentCache.getSegment(file, position);
+        }
+
+        return segment;
+    }
+}
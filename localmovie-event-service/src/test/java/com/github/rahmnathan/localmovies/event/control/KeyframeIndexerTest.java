@@ -0,0 +1,46 @@
+package com.github.rahmnathan.localmovies.event.control;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class KeyframeIndexerTest {
+    private KeyframeIndexer keyframeIndexer;
+    private Path file;
+
+    @Before
+    public void initialize() throws IOException {
+        keyframeIndexer = new KeyframeIndexer(Files.createTempDirectory("storage").toString());
+        file = Files.createTempFile("movie", ".mp4");
+        Files.write(file, new byte[1024]);
+    }
+
+    @After
+    public void shutdown() {
+        keyframeIndexer.shutdown();
+    }
+
+    @Test
+    public void failedIndexTest() throws InterruptedException {
+        Assert.assertFalse(keyframeIndexer.getIndex(file).isPresent());
+        awaitIndexing();
+
+        // The file has no moov box, so it isn't queued again until it changes
+        Assert.assertFalse(keyframeIndexer.getIndex(file).isPresent());
+        Assert.assertFalse(keyframeIndexer.isPending(file));
+        awaitIndexing();
+        Assert.assertFalse(keyframeIndexer.getIndex(file).isPresent());
+    }
+
+    private void awaitIndexing() throws InterruptedException {
+        for (int i = 0; i < 100 && keyframeIndexer.isPending(file); i++)
+            Thread.sleep(50);
+
+        Assert.assertFalse(keyframeIndexer.isPending(file));
+    }
+}
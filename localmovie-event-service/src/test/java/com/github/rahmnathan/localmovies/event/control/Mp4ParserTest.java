@@ -0,0 +1,126 @@
+package com.github.rahmnathan.localmovies.event.control;
+
+import com.github.rahmnathan.localmovies.event.data.KeyframeIndex;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+public class Mp4ParserTest {
+    private static final int SAMPLE_SIZE = 100;
+
+    @Test
+    public void progressiveKeyframeTest() throws IOException {
+        // 10 samples of 0.5s in chunks of 4, 4 and 2 samples, keyframes at samples 1, 5 and 9
+        byte[] ftyp = box("ftyp", "isom".getBytes(StandardCharsets.US_ASCII), new byte[4]);
+        long mdatOffset = ftyp.length;
+        long firstChunk = mdatOffset + 8;
+        byte[] mdat = box("mdat", new byte[10 * SAMPLE_SIZE]);
+
+        byte[] stbl = box("stbl",
+                fullBox("stts", ints(1, 10, 500)),
+                fullBox("stss", ints(3, 1, 5, 9)),
+                fullBox("stsc", ints(2, 1, 4, 1, 3, 2, 1)),
+                fullBox("stsz", ints(SAMPLE_SIZE, 10)),
+                fullBox("stco", ints(3, (int) firstChunk, (int) firstChunk + 4 * SAMPLE_SIZE, (int) firstChunk + 8 * SAMPLE_SIZE)));
+        byte[] moov = box("moov", videoTrack(stbl));
+
+        KeyframeIndex index = parse(ftyp, mdat, moov);
+
+        Assert.assertEquals(5.0, index.getDuration(), 0.001);
+        Assert.assertEquals(3, index.getKeyframeCount());
+        Assert.assertEquals(2.0, index.getKeyframeTime(1), 0.001);
+        Assert.assertEquals(firstChunk + 4 * SAMPLE_SIZE, index.getKeyframeOffset(1));
+        Assert.assertEquals(firstChunk + 8 * SAMPLE_SIZE, index.getKeyframeOffset(2));
+        Assert.assertEquals(1, index.findKeyframe(3.9));
+        Assert.assertEquals(2, index.findKeyframe(4.0));
+    }
+
+    @Test
+    public void largeOffsetTest() throws IOException {
+        // Offsets past 2^53 don't survive a round trip through a double
+        long chunkOffset = (1L << 53) + 1;
+        byte[] stbl = box("stbl",
+                fullBox("stts", ints(1, 2, 500)),
+                fullBox("stsc", ints(1, 1, 2, 1)),
+                fullBox("stsz", ints(SAMPLE_SIZE, 2)),
+                fullBox("co64", ints(1, (int) (chunkOffset >>> 32), (int) chunkOffset)));
+
+        KeyframeIndex index = parse(box("moov", videoTrack(stbl)));
+
+        Assert.assertEquals(2, index.getKeyframeCount());
+        Assert.assertEquals(chunkOffset, index.getKeyframeOffset(0));
+        Assert.assertEquals(chunkOffset + SAMPLE_SIZE, index.getKeyframeOffset(1));
+    }
+
+    @Test
+    public void fragmentedTest() throws IOException {
+        byte[] ftyp = box("ftyp", "iso6".getBytes(StandardCharsets.US_ASCII), new byte[4]);
+        byte[] stbl = box("stbl", fullBox("stts", ints(0)), fullBox("stsc", ints(0)),
+                fullBox("stsz", ints(0, 0)), fullBox("stco", ints(0)));
+        byte[] moof = box("moof", fullBox("mfhd", ints(1)));
+        byte[] mdat = box("mdat", new byte[3 * SAMPLE_SIZE]);
+
+        try {
+            parse(ftyp, box("moov", videoTrack(stbl)), moof, mdat);
+            Assert.fail("Fragmented file was indexed");
+        } catch (IOException e) {
+            Assert.assertEquals("Fragmented files aren't indexed", e.getMessage());
+        }
+    }
+
+    private KeyframeIndex parse(byte[]... boxes) throws IOException {
+        Path file = Files.createTempFile("keyframes", ".mp4");
+        try {
+            Files.write(file, concat(boxes));
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                return Mp4Parser.parse(channel, Files.size(file), 0);
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private byte[] videoTrack(byte[] stbl) throws IOException {
+        byte[] tkhd = fullBox("tkhd", ints(0, 0, 1, 0, 0));
+        byte[] mdhd = fullBox("mdhd", ints(0, 0, 1000, 0, 0));
+        byte[] hdlr = fullBox("hdlr", ints(0), "vide".getBytes(StandardCharsets.US_ASCII), new byte[13]);
+        return box("trak", tkhd, box("mdia", mdhd, hdlr, box("minf", stbl)));
+    }
+
+    private byte[] fullBox(String type, byte[]... content) throws IOException {
+        return box(type, new byte[4], concat(content));
+    }
+
+    private byte[] box(String type, byte[]... content) throws IOException {
+        byte[] body = concat(content);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeInt(body.length + 8);
+        output.write(type.getBytes(StandardCharsets.US_ASCII));
+        output.write(body);
+        return bytes.toByteArray();
+    }
+
+    private byte[] ints(int... values) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        for (int value : values)
+            output.writeInt(value);
+        return bytes.toByteArray();
+    }
+
+    private byte[] concat(byte[]... arrays) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (byte[] array : arrays)
+            bytes.write(array);
+        return bytes.toByteArray();
+    }
+}
@@ -1,91 +1,165 @@
 package com.github.rahmnathan.localmovie.service.boundary;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
+import com.github.rahmnathan.localmovie.service.control.LibraryTree;
+import io.micrometer.core.instrument.Metrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
 
 import javax.annotation.ManagedBean;
-import java.io.File;
-import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Optional;
-import java.util.Set;
-import java.util.concurrent.ExecutionException;
-import java.util.stream.Collectors;
+import javax.annotation.PreDestroy;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
+/**
+ * Answers listings from an in-memory tree of the whole library, built in the background at startup and kept current
+ * by directory events. Reports out of service until the first build is done, since listings are empty until then. The tree is also rebuilt on an interval to catch changes that don't send events, like those made to
+ * network mounts from another host, and what a rescan finds changed is passed to the rescan listeners. When a
+ * path is on more than one media root, it resolves to the first root in media.path.priority, then in media.path
+ * order.
+ */
 @ManagedBean
-public class FileListProvider {
+public class FileListProvider implements HealthIndicator {
     private final Logger logger = LoggerFactory.getLogger(FileListProvider.class.getName());
-    private final LoadingCache<String, Set<String>> files;
+    private final ScheduledExecutorService rescanExecutor = Executors.newSingleThreadScheduledExecutor();
+    private final List<Consumer<LibraryTree.Diff>> rescanListeners = new CopyOnWriteArrayList<>();
+    private final CountDownLatch built = new CountDownLatch(1);
+    private final LibraryTree libraryTree;
     private final String[] mediaPaths;
 
-    public FileListProvider(@Value("${media.path}") String[] mediaPaths) {
-        this.mediaPaths = mediaPaths;
-        this.files  = CacheBuilder.newBuilder()
-                .maximumSize(1000)
-                .build(new CacheLoader<String, Set<String>>() {
-                    @Override
-                    public Set<String> load(String path) {
-                        return listFilesNoCache(path);
-                    }
-                });
+    public FileListProvider(@Value("${media.path}") String[] mediaPaths,
+                            @Value("${media.path.priority:}") String[] priority,
+                            @Value("${library.rescan.minutes:60}") long rescanMinutes) {
+        this.mediaPaths = prioritize(mediaPaths, priority);
+        logger.info("Library tree - roots: {} rescan every: {} minutes", Arrays.toString(this.mediaPaths), rescanMinutes);
+        this.libraryTree = new LibraryTree(this.mediaPaths);
+        rescanExecutor.execute(this::build);
+
+        if (rescanMinutes > 0)
+            rescanExecutor.scheduleWithFixedDelay(this::rescan, rescanMinutes, rescanMinutes, TimeUnit.MINUTES);
+
+        Metrics.gauge("localmovies.files.directories", libraryTree, LibraryTree::size);
+    }
+
+    /**
+     * @return - Whether the first build of the library tree is done
+     */
+    public boolean isBuilt() {
+        return built.getCount() == 0;
+    }
+
+    /**
+     * Blocks until the first build of the library tree is done
+     */
+    public void awaitBuild() throws InterruptedException {
+        built.await();
+    }
+
+    /**
+     * @param listener - Called after a rescan with the paths it found added or removed without a directory event
+     */
+    public void addRescanListener(Consumer<LibraryTree.Diff> listener) {
+        rescanListeners.add(listener);
     }
 
     public Set<String> listFiles(String path){
-        try {
-            return files.get(path);
-        } catch (ExecutionException e){
-            logger.error("Failure loading file list from cache", e);
-            return new HashSet<>();
-        }
+        return libraryTree.list(path);
     }
 
-    private Set<String> listFilesNoCache(String path) {
-        logger.info("Listing files at - {}", path);
+    public int countFiles(String path){
+        return libraryTree.count(path);
+    }
 
-        Set<String> filePaths = new HashSet<>();
-        Arrays.stream(mediaPaths).forEach(mediaPath -> {
-                    Optional<File[]> fileArray = Optional.ofNullable(new File(mediaPath + path).listFiles());
+    public boolean exists(String path){
+        return libraryTree.exists(path);
+    }
 
-                    fileArray.ifPresent(files -> {
-                        Set<String> tempFileSet = Arrays.stream(files)
-                                .map(file -> file.getAbsolutePath().substring(mediaPath.length()))
-                                .collect(Collectors.toSet());
+    /**
+     * Only the tree is consulted, so a request for a path that doesn't exist never touches the filesystem. A file
+     * written to a network mount without an event resolves once the next rescan has found it.
+     * @param relativePath - Path relative to the media roots
+     * @return - The file on the highest priority root that has it, or empty if the tree doesn't hold it
+     */
+    public Optional<Path> resolve(String relativePath){
+        return libraryTree.resolve(relativePath);
+    }
 
-                        filePaths.addAll(tempFileSet);
-                    });
-                });
+    /**
+     * @param file - Absolute path of a file under one of the media roots
+     * @return - The path relative to its media root, or empty if it isn't under any of them
+     */
+    public Optional<String> relativize(Path file){
+        for (String mediaPath : mediaPaths) {
+            Path root = Paths.get(mediaPath);
+            if (file.startsWith(root) && !file.equals(root))
+                return Optional.of(root.relativize(file).toString());
+        }
 
-        return filePaths;
+        return Optional.empty();
     }
 
     public void addFile(String relativePath){
-        logger.info("Adding file to fileListCache: {}", relativePath);
+        logger.info("Adding file to library tree: {}", relativePath);
+        libraryTree.add(relativePath);
+    }
+
+    public void removeFile(String relativePath){
+        logger.info("Removing file from library tree: {}", relativePath);
+        libraryTree.remove(relativePath);
+    }
+
+    private static String[] prioritize(String[] mediaPaths, String[] priority) {
+        List<String> ordered = new ArrayList<>();
+        for (String mediaPath : priority) {
+            if (Arrays.asList(mediaPaths).contains(mediaPath) && !ordered.contains(mediaPath))
+                ordered.add(mediaPath);
+        }
+
+        for (String mediaPath : mediaPaths) {
+            if (!ordered.contains(mediaPath))
+                ordered.add(mediaPath);
+        }
+
+        return ordered.toArray(new String[0]);
+    }
+
+    private void build() {
         try {
-            Set<String> fileSet = files.get(upOneDir(relativePath));
-            fileSet.add(relativePath);
-        } catch (ExecutionException e){
-            logger.error("Error adding media file to cache", e);
+            libraryTree.rebuild();
+        } catch (RuntimeException e) {
+            logger.error("Failure building library tree", e);
+        } finally {
+            built.countDown();
         }
     }
 
-    public void removeFile(String relativePath){
-        logger.info("Removing file to fileListCache: {}", relativePath);
+    private void rescan() {
         try {
-            Set<String> fileSet = files.get(upOneDir(relativePath));
-            fileSet.remove(relativePath);
-        } catch (ExecutionException e){
-            logger.error("Error adding media file to cache", e);
+            LibraryTree.Diff diff = libraryTree.rebuild();
+            if (!diff.isEmpty())
+                rescanListeners.forEach(listener -> listener.accept(diff));
+        } catch (RuntimeException e) {
+            logger.error("Failure rescanning library", e);
         }
     }
 
-    private String upOneDir(String path){
-        String[] dirs = path.split(File.separator);
-        return Arrays.stream(dirs)
-                .limit(dirs.length - 1)
-                .collect(Collectors.joining(File.separator));
+    @Override
+    public Health health() {
+        Health.Builder builder = isBuilt() ? Health.up() : Health.outOfService();
+        return builder.withDetail("directories", libraryTree.size()).build();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        rescanExecutor.shutdownNow();
     }
 }
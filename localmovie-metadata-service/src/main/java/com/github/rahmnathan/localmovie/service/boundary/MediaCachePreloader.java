@@ -0,0 +1,130 @@
+package com.github.rahmnathan.localmovie.service.boundary;
+
+import com.github.rahmnathan.localmovie.domain.MediaFile;
+import com.github.rahmnathan.localmovie.service.control.MediaCacheLoader;
+import com.github.rahmnathan.localmovie.service.persistence.MovieRepository;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+
+import javax.annotation.ManagedBean;
+import javax.annotation.PreDestroy;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Streams the movies table into the metadata cache in pages once the application has started, instead of
+ * loading each entry with its own query on first request. Pages are read in path order, each one continuing after
+ * the last path of the one before, so every page is an index range scan however far into the table it is. Rows for
+ * media the library tree doesn't hold are skipped, so the preload waits for the tree's first build. Reports out of service until the preload is done, so the pod
+ * isn't marked ready while its cache is still cold.
+ */
+@ManagedBean
+public class MediaCachePreloader implements HealthIndicator {
+    private static final Timer PRELOAD_TIMER = Metrics.timer("localmovies.metadata.preload.timer");
+    private final Logger logger = LoggerFactory.getLogger(MediaCachePreloader.class.getName());
+    private final AtomicLong loadedCount = Metrics.gauge("localmovies.metadata.preload.loaded", new AtomicLong());
+    private final AtomicLong totalCount = Metrics.gauge("localmovies.metadata.preload.total", new AtomicLong());
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final MediaMetadataService metadataService;
+    private final FileListProvider fileListProvider;
+    private final MediaCacheLoader cacheLoader;
+    private final MovieRepository repository;
+    private final boolean enabled;
+    private final int pageSize;
+    private volatile boolean complete;
+    private volatile boolean failed;
+
+    public MediaCachePreloader(MediaMetadataService metadataService, FileListProvider fileListProvider, MediaCacheLoader cacheLoader,
+                               MovieRepository repository,
+                               @Value("${cache.preload.enabled:true}") boolean enabled,
+                               @Value("${cache.preload.page.size:500}") int pageSize) {
+        this.metadataService = metadataService;
+        this.fileListProvider = fileListProvider;
+        this.cacheLoader = cacheLoader;
+        this.repository = repository;
+        this.enabled = enabled;
+        this.pageSize = pageSize;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void preloadAsync() {
+        if (!enabled) {
+            complete = true;
+            return;
+        }
+
+        executor.submit(this::preload);
+    }
+
+    void preload() {
+        logger.info("Preloading metadata cache - page size: {}", pageSize);
+        long startTime = System.nanoTime();
+        long skipped = 0;
+        try {
+            fileListProvider.awaitBuild();
+            totalCount.set(repository.count());
+
+            String lastPath = "";
+            List<MediaFile> page;
+            do {
+                page = repository.findAfter(lastPath, PageRequest.of(0, pageSize));
+                if (page.isEmpty())
+                    break;
+
+                Map<String, MediaFile> mediaFiles = new HashMap<>();
+                for (MediaFile mediaFile : page) {
+                    if (fileListProvider.exists(mediaFile.getPath())) {
+                        mediaFiles.put(mediaFile.getPath(), cacheLoader.prepare(mediaFile));
+                    } else {
+                        skipped++;
+                    }
+                }
+
+                metadataService.putMediaMetadata(mediaFiles);
+                loadedCount.addAndGet(mediaFiles.size());
+                lastPath = page.get(page.size() - 1).getPath();
+            } while (page.size() == pageSize);
+        } catch (InterruptedException e) {
+            logger.info("Metadata cache preload interrupted");
+            Thread.currentThread().interrupt();
+            failed = true;
+        } catch (RuntimeException e) {
+            // A failed preload only means a cold cache, which still loads on demand, so don't hold readiness back forever
+            logger.error("Failure preloading metadata cache", e);
+            failed = true;
+        } finally {
+            long duration = System.nanoTime() - startTime;
+            PRELOAD_TIMER.record(duration, TimeUnit.NANOSECONDS);
+            logger.info("Preloaded {} media files in {} ms, skipped {} not in the library", loadedCount.get(),
+                    TimeUnit.NANOSECONDS.toMillis(duration), skipped);
+            complete = true;
+        }
+    }
+
+    @Override
+    public Health health() {
+        Health.Builder builder = complete ? Health.up() : Health.outOfService();
+        return builder.withDetail("loaded", loadedCount.get())
+                .withDetail("total", totalCount.get())
+                .withDetail("failed", failed)
+                .build();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -1,78 +1,302 @@
 package com.github.rahmnathan.localmovie.service.boundary;
 
 import com.github.rahmnathan.localmovie.domain.MediaFile;
+import com.github.rahmnathan.localmovie.domain.MediaFilePage;
+import com.github.rahmnathan.localmovie.domain.MediaPath;
+import com.github.rahmnathan.localmovie.domain.MovieOrder;
 import com.github.rahmnathan.localmovie.domain.MovieSearchCriteria;
 import com.github.rahmnathan.localmovie.service.control.MediaCacheLoader;
-import com.github.rahmnathan.localmovie.domain.MovieClient;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.LoadingCache;
+import com.github.rahmnathan.localmovie.service.control.CacheWeights;
+import com.github.rahmnathan.localmovie.service.control.DirectoryIndex;
+import com.github.rahmnathan.localmovie.service.control.LibraryTree;
+import com.github.rahmnathan.localmovie.service.control.PageCursor;
+import com.github.rahmnathan.localmovie.service.control.ProviderRetryQueue;
+import com.github.rahmnathan.localmovie.service.control.SearchIndex;
+import com.github.rahmnathan.localmovie.service.persistence.MediaFileLog;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 
 import javax.annotation.ManagedBean;
+import javax.annotation.PreDestroy;
 import java.util.*;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
-import static com.github.rahmnathan.localmovie.service.control.MediaFileUtils.paginateMediaFiles;
-import static com.github.rahmnathan.localmovie.service.control.MediaFileUtils.removePosterImages;
-import static com.github.rahmnathan.localmovie.service.control.MediaFileUtils.sortMediaFiles;
-
 @ManagedBean
 public class MediaMetadataService {
+    private static final Timer SEARCH_TIMER = Metrics.timer("localmovies.search.timer");
     private final Logger logger = LoggerFactory.getLogger(MediaMetadataService.class);
+    private final SearchIndex searchIndex = new SearchIndex();
+    private final ExecutorService refreshExecutor = Executors.newFixedThreadPool(2);
+    private final List<Consumer<String>> directoryListeners = new CopyOnWriteArrayList<>();
     private final LoadingCache<String, MediaFile> movieInfoCache;
+    private final Cache<String, DirectoryIndex> directoryIndexes;
+    private final Cache<String, DirectoryIndex> snapshots;
     private final FileListProvider fileListProvider;
+    private final MediaFileLog mediaFileLog;
+    private final ProviderRetryQueue retryQueue;
 
-    public MediaMetadataService(MediaCacheLoader cacheLoader, FileListProvider fileListProvider) {
+    public MediaMetadataService(MediaCacheLoader cacheLoader, FileListProvider fileListProvider, MediaFileLog mediaFileLog,
+                                ProviderRetryQueue retryQueue,
+                                @Value("${cache.metadata.max.weight:67108864}") long maxWeight,
+                                @Value("${cache.metadata.refresh.minutes:60}") long refreshMinutes,
+                                @Value("${cache.cursor.expire.minutes:30}") long cursorMinutes,
+                                @Value("${cache.cursor.max.entries:1000000}") long cursorMaxEntries) {
+        logger.info("Metadata cache - max weight: {} refresh after: {} minutes", maxWeight, refreshMinutes);
         this.fileListProvider = fileListProvider;
-       this.movieInfoCache = CacheBuilder.newBuilder()
-                .maximumSize(1000)
+        this.mediaFileLog = mediaFileLog;
+        this.retryQueue = retryQueue;
+        this.movieInfoCache = Caffeine.newBuilder()
+                .maximumWeight(maxWeight)
+                .weigher((String path, MediaFile mediaFile) -> CacheWeights.weigh(path, mediaFile))
+                .refreshAfterWrite(refreshMinutes, TimeUnit.MINUTES)
+                .executor(refreshExecutor)
+                .recordStats()
                 .build(cacheLoader);
+
+        CaffeineCacheMetrics.monitor(Metrics.globalRegistry, movieInfoCache, "localmovies.metadata");
+
+        // Rebuilt on the metadata refresh interval so sort keys pick up refreshed metadata and view counts
+        this.directoryIndexes = Caffeine.newBuilder()
+                .expireAfterWrite(refreshMinutes, TimeUnit.MINUTES)
+                .recordStats()
+                .build();
+
+        CaffeineCacheMetrics.monitor(Metrics.globalRegistry, directoryIndexes, "localmovies.directories");
+
+        // Snapshots with cursors into them are kept while clients are still scrolling, bounded by total entries
+        this.snapshots = Caffeine.newBuilder()
+                .maximumWeight(cursorMaxEntries)
+                .weigher((String key, DirectoryIndex index) -> index.size())
+                .expireAfterAccess(cursorMinutes, TimeUnit.MINUTES)
+                .recordStats()
+                .build();
+
+        CaffeineCacheMetrics.monitor(Metrics.globalRegistry, snapshots, "localmovies.snapshots");
+        Metrics.gauge("localmovies.search.documents", searchIndex, SearchIndex::size);
+        retryQueue.setRetryAction(movieInfoCache::refresh);
+        fileListProvider.addRescanListener(this::applyRescan);
+    }
+
+    /**
+     * @param listener - Called with the directory's path whenever media is added to or deleted from it
+     */
+    public void addDirectoryListener(Consumer<String> listener) {
+        directoryListeners.add(listener);
     }
 
     public int loadMediaListLength(String directoryPath){
-        return fileListProvider.listFiles(directoryPath).size();
+        return fileListProvider.countFiles(directoryPath);
+    }
+
+    /**
+     * @param searchCriteria - Directory and filters to count
+     * @return - Number of entries in the directory matching the filters
+     */
+    public int loadMediaListLength(MovieSearchCriteria searchCriteria){
+        DirectoryIndex.Filter filter = DirectoryIndex.Filter.of(searchCriteria);
+        if (filter == DirectoryIndex.Filter.NONE)
+            return loadMediaListLength(searchCriteria.getPath());
+
+        return getDirectoryIndex(searchCriteria.getPath()).count(filter);
     }
 
-    public MediaFile loadSingleMediaFile(String filePath) {
-        return getMediaMetadata(filePath);
+    /**
+     * Request paths are checked against the library first, so a made up path never reaches the cache loader
+     * @param filePath - Relative path from a request
+     * @return - MediaFile for the path, or empty if the library doesn't hold it
+     */
+    public Optional<MediaFile> loadSingleMediaFile(String filePath) {
+        if (!fileListProvider.exists(filePath))
+            return Optional.empty();
+
+        return Optional.of(getMediaMetadata(filePath));
     }
 
     public List<MediaFile> loadMediaFileList(MovieSearchCriteria searchCriteria) {
-        Set<String> files = fileListProvider.listFiles(searchCriteria.getPath());
-        List<MediaFile> movies = loadMedia(files);
+        return loadMediaFilePage(searchCriteria).getMediaFiles();
+    }
 
-        if (searchCriteria.getClient() == MovieClient.WEBAPP) {
-            movies = removePosterImages(movies);
-        }
+    /**
+     * Pages after a cursor are read from the same directory snapshot as the page the cursor came from, so entries
+     * added or deleted while a client is scrolling don't shift the remaining pages
+     * @param searchCriteria - Directory, order, filters and either a page number or a cursor from the previous page
+     * @return - Page of media, and a cursor to the next page
+     * @throws IllegalArgumentException if the cursor isn't valid for the criteria
+     */
+    public MediaFilePage loadMediaFilePage(MovieSearchCriteria searchCriteria) {
+        String path = searchCriteria.getPath();
+        PageCursor cursor = searchCriteria.getCursor() == null ? null : PageCursor.decode(searchCriteria.getCursor());
+        DirectoryIndex directoryIndex = cursor == null ? null : snapshots.getIfPresent(snapshotKey(path, cursor.getVersion()));
+        if (directoryIndex == null)
+            directoryIndex = getDirectoryIndex(path);
+
+        int page = searchCriteria.getPage() == null ? 0 : searchCriteria.getPage();
+        int itemsPerPage = searchCriteria.getItemsPerPage() == null ? directoryIndex.size() : searchCriteria.getItemsPerPage();
+        logger.info("Loading page of movie list - order: {} page: {} resultsPerPage: {} cursor: {}", searchCriteria.getOrder(),
+                page, itemsPerPage, cursor != null);
+
+        DirectoryIndex.Page indexPage = directoryIndex.page(resolveOrder(searchCriteria), DirectoryIndex.Filter.of(searchCriteria),
+                page, cursor, itemsPerPage);
+        if (indexPage.getNext() == null)
+            return new MediaFilePage(loadMedia(indexPage.getPaths()), null);
+
+        DirectoryIndex snapshot = directoryIndex;
+        snapshots.get(snapshotKey(path, snapshot.getVersion()), key -> snapshot);
+        return new MediaFilePage(loadMedia(indexPage.getPaths()), indexPage.getNext().encode());
+    }
 
-        movies = sortMediaFiles(searchCriteria, movies);
-        return paginateMediaFiles(movies, searchCriteria);
+    private static String snapshotKey(String path, long version) {
+        return version + ":" + path;
     }
 
-    private List<MediaFile> loadMedia(Set<String> relativePaths){
-        return relativePaths.parallelStream()
+    /**
+     * Listings made before the library tree's first build is done aren't cached, since the tree is still filling in
+     */
+    private DirectoryIndex getDirectoryIndex(String directoryPath) {
+        if (!fileListProvider.isBuilt())
+            return buildDirectoryIndex(directoryPath);
+
+        return directoryIndexes.get(directoryPath, this::buildDirectoryIndex);
+    }
+
+    private DirectoryIndex buildDirectoryIndex(String directoryPath) {
+        List<String> files = fileListProvider.listFiles(directoryPath).stream()
                 .sorted()
-                .map(this::getMediaMetadata)
                 .collect(Collectors.toList());
+
+        List<MediaFile> mediaFiles = loadMedia(files);
+        mediaFiles.forEach(searchIndex::add);
+        return DirectoryIndex.build(mediaFiles);
+    }
+
+    /**
+     * Anything below a top level directory is a series, and is listed by season or episode number
+     */
+    private MovieOrder resolveOrder(MovieSearchCriteria searchCriteria) {
+        // Only listed paths are ever interned, and a path that was never listed has nothing to order
+        MediaPath path = MediaPath.find(searchCriteria.getPath());
+        if (path != null && path.getDepth() > 1)
+            return MovieOrder.SEASONS_EPISODES;
+
+        return searchCriteria.getOrder();
+    }
+
+    private List<MediaFile> loadMedia(List<String> paths){
+        try {
+            Map<String, MediaFile> mediaFiles = movieInfoCache.getAll(paths);
+            return paths.stream()
+                    .map(mediaFiles::get)
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.toList());
+        } catch (CompletionException e){
+            logger.error("Failed to batch load media info from cache", e);
+            return paths.stream()
+                    .map(this::getMediaMetadata)
+                    .collect(Collectors.toList());
+        }
     }
 
     public MediaFile getMediaMetadata(String path){
         try {
             return movieInfoCache.get(path);
-        } catch (ExecutionException e){
+        } catch (CompletionException e){
             logger.error("Failed to load media info from cache", e);
             return MediaFile.Builder.newInstance().build();
         }
     }
 
+    /**
+     * @param query - Free text query over titles, actors, genres and plots
+     * @param page - Zero based page number
+     * @param itemsPerPage - Page size
+     * @return - Matching media, best match first
+     */
+    public List<MediaFile> searchMediaFiles(String query, int page, int itemsPerPage){
+        return SEARCH_TIMER.record(() -> loadMedia(searchIndex.search(query, page, itemsPerPage)));
+    }
+
+    /**
+     * Database rows outlive their files, so only media the library tree still holds is made searchable
+     * @param mediaFiles - MediaFiles keyed by path
+     */
+    public void putMediaMetadata(Map<String, MediaFile> mediaFiles){
+        movieInfoCache.putAll(mediaFiles);
+        mediaFiles.forEach((path, mediaFile) -> {
+            if (fileListProvider.exists(path))
+                searchIndex.add(mediaFile);
+        });
+    }
+
     public void addMediaMetadata(String path){
         fileListProvider.addFile(path);
+
+        MediaFile mediaFile = getMediaMetadata(path);
+        searchIndex.add(mediaFile);
+
+        MediaPath mediaPath = MediaPath.of(path);
+        if (mediaPath.getDepth() > 1) {
+            String directory = mediaPath.getParent().toString();
+            directoryIndexes.asMap().computeIfPresent(directory, (key, index) -> index.withAdded(mediaFile));
+            directoryListeners.forEach(listener -> listener.accept(directory));
+        }
     }
 
     public void deleteMediaMetadata(String path){
         fileListProvider.removeFile(path);
+
+        // A path that was never interned was never listed, so no directory index holds it
+        MediaPath mediaPath = MediaPath.find(path);
+        String directory = mediaPath != null && mediaPath.getDepth() > 1 ? mediaPath.getParent().toString() : null;
+        if (directory != null)
+            directoryIndexes.asMap().computeIfPresent(directory, (key, index) -> index.withRemoved(path));
+
+        forget(path);
+
+        if (directory != null)
+            directoryListeners.forEach(listener -> listener.accept(directory));
+    }
+
+    /**
+     * Changes a rescan found are already in the library tree. The directories they're in are rebuilt on their next
+     * listing, which also makes added media searchable.
+     */
+    private void applyRescan(LibraryTree.Diff diff) {
+        logger.info("Applying rescan - added: {} removed: {}", diff.getAdded().size(), diff.getRemoved().size());
+        Set<String> directories = new HashSet<>();
+        diff.getRemoved().forEach(mediaPath -> {
+            forget(mediaPath.toString());
+            directories.add(mediaPath.getParent().toString());
+        });
+        diff.getAdded().forEach(mediaPath -> directories.add(mediaPath.getParent().toString()));
+
+        directories.forEach(directory -> {
+            directoryIndexes.invalidate(directory);
+            directoryListeners.forEach(listener -> listener.accept(directory));
+        });
+    }
+
+    private void forget(String path) {
+        searchIndex.remove(path);
         movieInfoCache.invalidate(path);
+        mediaFileLog.remove(path);
+        retryQueue.remove(path);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        refreshExecutor.shutdownNow();
     }
 }
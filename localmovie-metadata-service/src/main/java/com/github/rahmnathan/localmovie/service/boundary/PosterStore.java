@@ -0,0 +1,141 @@
+package com.github.rahmnathan.localmovie.service.boundary;
+
+import com.github.rahmnathan.localmovie.domain.PosterSize;
+import com.github.rahmnathan.localmovie.service.control.PosterResizer;
+import com.google.common.hash.Hashing;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+
+import javax.annotation.ManagedBean;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Base64;
+import java.util.Optional;
+import java.util.regex.Pattern;
+
+/**
+ * Content addressed poster storage. Posters are decoded once and written to disk under the SHA-256 of their
+ * bytes, so a hash always identifies the same image and can be cached by clients forever.
+ */
+@ManagedBean
+public class PosterStore {
+    private static final Counter STORED_COUNTER = Metrics.counter("localmovies.poster.store.counter");
+    private static final String JPEG = "image/jpeg";
+    private static final String PNG = "image/png";
+    private static final Pattern HASH_PATTERN = Pattern.compile("[0-9a-f]{64}");
+    private final Logger logger = LoggerFactory.getLogger(PosterStore.class.getName());
+    private final PosterResizer posterResizer;
+    private final Path posterDirectory;
+
+    public PosterStore(@Value("${storage.path:/opt/localmovies/storage}") String storagePath, PosterResizer posterResizer) {
+        this.posterDirectory = Paths.get(storagePath, "posters");
+        this.posterResizer = posterResizer;
+        logger.info("Poster directory: {}", posterDirectory);
+    }
+
+    /**
+     * @param base64Image - Base64 encoded poster as returned by the movie provider
+     * @return - Hash of the stored poster, or null if there is no valid image to store
+     */
+    public String store(String base64Image) {
+        if (base64Image == null || base64Image.isEmpty())
+            return null;
+
+        byte[] image;
+        try {
+            image = Base64.getDecoder().decode(base64Image);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+
+        if (!isImage(image))
+            return null;
+
+        String hash = Hashing.sha256().hashBytes(image).toString();
+        Path poster = resolve(hash);
+        if (Files.exists(poster))
+            return hash;
+
+        try {
+            Files.createDirectories(poster.getParent());
+            Path tempFile = Files.createTempFile(poster.getParent(), hash, ".tmp");
+            try {
+                Files.write(tempFile, image);
+                Files.move(tempFile, poster, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+            STORED_COUNTER.increment();
+            posterResizer.resizeAsync(poster, size -> resolve(hash, size));
+            return hash;
+        } catch (IOException e) {
+            logger.error("Failure storing poster", e);
+            return null;
+        }
+    }
+
+    /**
+     * @param hash - Poster hash
+     * @return - Location of the poster file, if the hash is valid and the poster is stored
+     */
+    public Optional<Path> getPoster(String hash) {
+        if (hash == null || !HASH_PATTERN.matcher(hash).matches())
+            return Optional.empty();
+
+        Path poster = resolve(hash);
+        return Files.isRegularFile(poster) ? Optional.of(poster) : Optional.empty();
+    }
+
+    /**
+     * Smaller sizes are rendered in the background, so a size that isn't ready yet is queued and reported missing.
+     * @param hash - Poster hash
+     * @param size - Requested poster size
+     * @return - Location of the poster file at the requested size, if it has been rendered
+     */
+    public Optional<Path> getPoster(String hash, PosterSize size) {
+        if (size == null || size == PosterSize.ORIGINAL)
+            return getPoster(hash);
+
+        Optional<Path> original = getPoster(hash);
+        if (!original.isPresent())
+            return Optional.empty();
+
+        Path poster = resolve(hash, size);
+        if (Files.isRegularFile(poster))
+            return Optional.of(poster);
+
+        posterResizer.resizeAsync(original.get(), posterSize -> resolve(hash, posterSize));
+        return Optional.empty();
+    }
+
+    /**
+     * @param image - Poster bytes
+     * @return - Media type from the image's signature, or null if it's neither a JPEG nor a PNG
+     */
+    public static String getMediaType(byte[] image) {
+        if (image.length > 2 && (image[0] & 0xFF) == 0xFF && (image[1] & 0xFF) == 0xD8)
+            return JPEG;
+        if (image.length > 4 && (image[0] & 0xFF) == 0x89 && image[1] == 'P' && image[2] == 'N' && image[3] == 'G')
+            return PNG;
+
+        return null;
+    }
+
+    /**
+     * Placeholders like "noImage" happen to be valid Base64, so check for a JPEG or PNG signature
+     */
+    private boolean isImage(byte[] image) {
+        return getMediaType(image) != null;
+    }
+
+    private Path resolve(String hash) {
+        return posterDirectory.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private Path resolve(String hash, PosterSize size) {
+        return posterDirectory.resolve(hash.substring(0, 2)).resolve(hash + "-" + size.name().toLowerCase() + ".jpg");
+    }
+}
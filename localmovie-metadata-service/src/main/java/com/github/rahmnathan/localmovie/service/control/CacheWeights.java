@@ -0,0 +1,34 @@
+package com.github.rahmnathan.localmovie.service.control;
+
+import com.github.rahmnathan.localmovie.domain.MediaFile;
+import com.github.rahmnathan.omdb.data.Movie;
+
+/**
+ * Rough retained size estimates, in bytes, used to bound caches by memory rather than entry count.
+ */
+public class CacheWeights {
+    private static final int OBJECT_OVERHEAD = 16;
+    private static final int STRING_OVERHEAD = 40;
+
+    private CacheWeights(){
+        // No need to instantiate this
+    }
+
+    public static int weigh(String key, MediaFile mediaFile) {
+        int weight = weigh(key) + OBJECT_OVERHEAD * 2 + weigh(mediaFile.getPath()) + weigh(mediaFile.getFileName())
+                + weigh(mediaFile.getPosterHash());
+
+        Movie movie = mediaFile.getMovie();
+        if (movie != null) {
+            weight += OBJECT_OVERHEAD + weigh(movie.getTitle()) + weigh(movie.getImage()) + weigh(movie.getImdbRating())
+                    + weigh(movie.getMetaRating()) + weigh(movie.getReleaseYear()) + weigh(movie.getGenre())
+                    + weigh(movie.getActors()) + weigh(movie.getPlot());
+        }
+
+        return weight;
+    }
+
+    private static int weigh(String value) {
+        return value == null ? 0 : STRING_OVERHEAD + value.length() * 2;
+    }
+}
@@ -0,0 +1,533 @@
+package com.github.rahmnathan.localmovie.service.control;
+
+import com.github.rahmnathan.localmovie.domain.MediaFile;
+import com.github.rahmnathan.localmovie.domain.MovieOrder;
+import com.github.rahmnathan.localmovie.domain.MovieSearchCriteria;
+import com.github.rahmnathan.omdb.data.Movie;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Immutable, columnar snapshot of one directory. Rows are kept in path order, with the sort and filter keys
+ * parsed once into primitive columns and genres held as a bitmask per row. Every {@link MovieOrder} is a
+ * permutation of row ids, so a page is read by walking the matching permutation and testing the columns,
+ * without sorting, parsing or allocating per row. Adding or removing an entry returns a new snapshot with a new
+ * version, and readers keep whichever snapshot they started with. Each directory numbers its own genres, and a
+ * directory with more than 64 matches the rest by name.
+ */
+public class DirectoryIndex {
+    private static final Logger logger = LoggerFactory.getLogger(DirectoryIndex.class.getName());
+    private static final AtomicLong VERSIONS = new AtomicLong();
+    private static final MovieOrder[] ORDERS = MovieOrder.values();
+    private static final int UNKNOWN_YEAR = Integer.MIN_VALUE;
+    private static final float UNKNOWN_RATING = -1;
+
+    private final String[] paths;
+    private final long[] created;
+    private final int[] views;
+    private final int[] years;
+    private final float[] ratings;
+    private final int[] numbers;
+    private final long[] genres;
+    private final String[] genreLists;
+    private final int[][] orders;
+    private final long version = VERSIONS.incrementAndGet();
+    private GenreBits genreBits;
+
+    private DirectoryIndex(int size, GenreBits genreBits) {
+        this.genreBits = genreBits;
+        this.paths = new String[size];
+        this.created = new long[size];
+        this.views = new int[size];
+        this.years = new int[size];
+        this.ratings = new float[size];
+        this.numbers = new int[size];
+        this.genres = new long[size];
+        this.genreLists = new String[size];
+        this.orders = new int[ORDERS.length][];
+    }
+
+    public static DirectoryIndex build(Collection<MediaFile> mediaFiles) {
+        MediaFile[] rows = mediaFiles.stream()
+                .filter(mediaFile -> mediaFile.getPath() != null)
+                .sorted(Comparator.comparing(MediaFile::getPath))
+                .toArray(MediaFile[]::new);
+
+        DirectoryIndex index = new DirectoryIndex(rows.length, GenreBits.EMPTY);
+        for (int row = 0; row < rows.length; row++)
+            index.setRow(row, rows[row]);
+
+        for (MovieOrder order : ORDERS) {
+            Integer[] rowIds = new Integer[rows.length];
+            for (int row = 0; row < rows.length; row++)
+                rowIds[row] = row;
+
+            Arrays.sort(rowIds, (first, second) -> index.compare(order, first, second));
+            index.orders[order.ordinal()] = Arrays.stream(rowIds).mapToInt(Integer::intValue).toArray();
+        }
+
+        return index;
+    }
+
+    /**
+     * @param mediaFile - Entry to add, replacing any entry with the same path
+     * @return - New snapshot including the entry
+     */
+    public DirectoryIndex withAdded(MediaFile mediaFile) {
+        DirectoryIndex previous = withRemoved(mediaFile.getPath());
+        int size = previous.paths.length;
+        int insertRow = -Arrays.binarySearch(previous.paths, mediaFile.getPath()) - 1;
+
+        DirectoryIndex index = new DirectoryIndex(size + 1, previous.genreBits);
+        copyRows(previous, 0, index, 0, insertRow);
+        copyRows(previous, insertRow, index, insertRow + 1, size - insertRow);
+        index.setRow(insertRow, mediaFile);
+
+        for (MovieOrder order : ORDERS) {
+            int[] previousOrder = previous.orders[order.ordinal()];
+            int[] rowIds = new int[size + 1];
+            for (int position = 0; position < size; position++) {
+                int rowId = previousOrder[position];
+                rowIds[position] = rowId >= insertRow ? rowId + 1 : rowId;
+            }
+
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (index.compare(order, rowIds[middle], insertRow) < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+
+            System.arraycopy(rowIds, low, rowIds, low + 1, size - low);
+            rowIds[low] = insertRow;
+            index.orders[order.ordinal()] = rowIds;
+        }
+
+        return index;
+    }
+
+    /**
+     * @param path - Path of the entry to remove
+     * @return - New snapshot without the entry, or this snapshot if there was no such entry
+     */
+    public DirectoryIndex withRemoved(String path) {
+        int removedRow = Arrays.binarySearch(paths, path);
+        if (removedRow < 0)
+            return this;
+
+        int size = paths.length;
+        DirectoryIndex index = new DirectoryIndex(size - 1, genreBits);
+        copyRows(this, 0, index, 0, removedRow);
+        copyRows(this, removedRow + 1, index, removedRow, size - removedRow - 1);
+
+        for (MovieOrder order : ORDERS) {
+            int[] rowIds = new int[size - 1];
+            int position = 0;
+            for (int rowId : orders[order.ordinal()]) {
+                if (rowId != removedRow)
+                    rowIds[position++] = rowId > removedRow ? rowId - 1 : rowId;
+            }
+
+            index.orders[order.ordinal()] = rowIds;
+        }
+
+        return index;
+    }
+
+    /**
+     * @param order - Sort order, or null for path order
+     * @param filter - Rows to include
+     * @param page - Zero based page number
+     * @param itemsPerPage - Page size
+     * @return - Paths on the requested page
+     */
+    public List<String> page(MovieOrder order, Filter filter, int page, int itemsPerPage) {
+        return scan(order, filter, 0, (long) page * itemsPerPage, itemsPerPage).getPaths();
+    }
+
+    public List<String> page(MovieOrder order, int page, int itemsPerPage) {
+        return page(order, Filter.NONE, page, itemsPerPage);
+    }
+
+    /**
+     * @param order - Sort order, or null for path order
+     * @param filter - Rows to include
+     * @param page - Zero based page number, used if there's no cursor
+     * @param cursor - Position after the previous page, or null to start from the page number
+     * @param itemsPerPage - Page size
+     * @return - Paths on the requested page, and a cursor to the next page
+     */
+    public Page page(MovieOrder order, Filter filter, int page, PageCursor cursor, int itemsPerPage) {
+        if (cursor == null)
+            return scan(order, filter, 0, (long) page * itemsPerPage, itemsPerPage);
+
+        if (cursor.getOrder() != order)
+            throw new IllegalArgumentException("Cursor is for a different order");
+
+        return scan(order, filter, resume(order, cursor), 0, itemsPerPage);
+    }
+
+    private Page scan(MovieOrder order, Filter filter, int start, long skip, int itemsPerPage) {
+        Filter.Matcher matcher = filter.bind(this);
+        int[] rowIds = order == null ? null : orders[order.ordinal()];
+        List<String> result = new ArrayList<>(Math.min(itemsPerPage, paths.length));
+
+        int position = start;
+        int lastRow = -1;
+        for (; position < paths.length && result.size() < itemsPerPage; position++) {
+            int row = rowIds == null ? position : rowIds[position];
+            if (!matcher.matches(row))
+                continue;
+
+            if (skip > 0) {
+                skip--;
+            } else {
+                result.add(paths[row]);
+                lastRow = row;
+            }
+        }
+
+        PageCursor next = position < paths.length && lastRow >= 0
+                ? new PageCursor(version, order, position, sortKey(order, lastRow), paths[lastRow]) : null;
+        return new Page(result, next);
+    }
+
+    /**
+     * A cursor into this snapshot resumes where it left off. A cursor into another snapshot of the directory
+     * resumes after the first row that sorts after its last entry, found by binary search.
+     */
+    private int resume(MovieOrder order, PageCursor cursor) {
+        if (cursor.getVersion() == version)
+            return Math.min(cursor.getPosition(), paths.length);
+
+        int[] rowIds = order == null ? null : orders[order.ordinal()];
+        int low = 0;
+        int high = paths.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            int row = rowIds == null ? middle : rowIds[middle];
+            int comparison = compareKeys(order, sortKey(order, row), cursor.getSortKey());
+            if (comparison == 0)
+                comparison = paths[row].compareTo(cursor.getPath());
+
+            if (comparison <= 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * @param filter - Rows to include
+     * @return - Number of rows matching the filter
+     */
+    public int count(Filter filter) {
+        if (filter == Filter.NONE)
+            return paths.length;
+
+        Filter.Matcher matcher = filter.bind(this);
+        int count = 0;
+        for (int row = 0; row < paths.length; row++) {
+            if (matcher.matches(row))
+                count++;
+        }
+
+        return count;
+    }
+
+    public int size() {
+        return paths.length;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    private int compare(MovieOrder order, int first, int second) {
+        int comparison = compareKeys(order, sortKey(order, first), sortKey(order, second));
+
+        // Rows are in path order, so ties fall back to the path
+        return comparison != 0 ? comparison : Integer.compare(first, second);
+    }
+
+    /**
+     * @return - The row's value of the order's column, with ratings as their float bits
+     */
+    private long sortKey(MovieOrder order, int row) {
+        if (order == null)
+            return 0;
+
+        switch (order) {
+            case DATE_ADDED:
+                return created[row];
+            case MOST_VIEWS:
+                return views[row];
+            case RATING:
+                return Float.floatToIntBits(ratings[row]);
+            case RELEASE_YEAR:
+                return years[row];
+            case SEASONS_EPISODES:
+                return numbers[row];
+            default:
+                return 0;
+        }
+    }
+
+    private static int compareKeys(MovieOrder order, long first, long second) {
+        if (order == null)
+            return 0;
+
+        switch (order) {
+            case DATE_ADDED:
+            case MOST_VIEWS:
+            case RELEASE_YEAR:
+                return Long.compare(second, first);
+            case RATING:
+                return Float.compare(Float.intBitsToFloat((int) second), Float.intBitsToFloat((int) first));
+            case SEASONS_EPISODES:
+                return Long.compare(first, second);
+            default:
+                return 0;
+        }
+    }
+
+    private void setRow(int row, MediaFile mediaFile) {
+        Movie movie = mediaFile.getMovie();
+        paths[row] = mediaFile.getPath();
+        created[row] = mediaFile.getCreated();
+        views[row] = mediaFile.getViews();
+        years[row] = movie == null ? UNKNOWN_YEAR : parseInt(movie.getReleaseYear(), UNKNOWN_YEAR);
+        ratings[row] = movie == null ? UNKNOWN_RATING : parseFloat(movie.getImdbRating());
+        numbers[row] = movie == null ? Integer.MAX_VALUE : parseNumber(movie.getTitle());
+        genreLists[row] = movie == null ? null : movie.getGenre();
+        genres[row] = genreMask(genreLists[row]);
+    }
+
+    private static void copyRows(DirectoryIndex source, int sourceRow, DirectoryIndex destination, int destinationRow, int length) {
+        System.arraycopy(source.paths, sourceRow, destination.paths, destinationRow, length);
+        System.arraycopy(source.created, sourceRow, destination.created, destinationRow, length);
+        System.arraycopy(source.views, sourceRow, destination.views, destinationRow, length);
+        System.arraycopy(source.years, sourceRow, destination.years, destinationRow, length);
+        System.arraycopy(source.ratings, sourceRow, destination.ratings, destinationRow, length);
+        System.arraycopy(source.numbers, sourceRow, destination.numbers, destinationRow, length);
+        System.arraycopy(source.genres, sourceRow, destination.genres, destinationRow, length);
+        System.arraycopy(source.genreLists, sourceRow, destination.genreLists, destinationRow, length);
+    }
+
+    /**
+     * Genres are given bits in the order this directory first sees them. A new genre gives the snapshot its own
+     * copy of the numbering, so snapshots that share one never see it change.
+     */
+    private long genreMask(String genreList) {
+        if (genreList == null)
+            return 0;
+
+        long mask = 0;
+        for (String genre : genreList.split(",")) {
+            String key = genreKey(genre);
+            if (key.isEmpty())
+                continue;
+
+            Integer bit = genreBits.bits.get(key);
+            if (bit == null && !genreBits.overflowed) {
+                genreBits = genreBits.with(key);
+                bit = genreBits.bits.get(key);
+            }
+
+            if (bit != null)
+                mask |= 1L << bit;
+        }
+
+        return mask;
+    }
+
+    /**
+     * Slow path for genres past the first 64 in a directory, which have no bit
+     */
+    private boolean hasGenre(int row, Set<String> keys) {
+        if (genreLists[row] == null)
+            return false;
+
+        for (String genre : genreLists[row].split(",")) {
+            if (keys.contains(genreKey(genre)))
+                return true;
+        }
+
+        return false;
+    }
+
+    private static String genreKey(String genre) {
+        return genre.trim().toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Seasons and episodes are titled like "Season 2", so the number is the second word
+     */
+    private static int parseNumber(String title) {
+        if (title == null)
+            return Integer.MAX_VALUE;
+
+        String[] words = title.split(" ");
+        return words.length > 1 ? parseInt(words[1], Integer.MAX_VALUE) : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Reads the leading digits, so a series year like "2005-2010" sorts by its first year
+     */
+    private static int parseInt(String value, int defaultValue) {
+        if (value == null)
+            return defaultValue;
+
+        int end = 0;
+        while (end < value.length() && end < 9 && Character.isDigit(value.charAt(end)))
+            end++;
+
+        return end == 0 ? defaultValue : Integer.parseInt(value.substring(0, end));
+    }
+
+    private static float parseFloat(String value) {
+        try {
+            return value == null ? UNKNOWN_RATING : Float.parseFloat(value.trim());
+        } catch (NumberFormatException e) {
+            return UNKNOWN_RATING;
+        }
+    }
+
+    private static class GenreBits {
+        private static final GenreBits EMPTY = new GenreBits(Collections.emptyMap(), false);
+        private final Map<String, Integer> bits;
+        private final boolean overflowed;
+
+        private GenreBits(Map<String, Integer> bits, boolean overflowed) {
+            this.bits = bits;
+            this.overflowed = overflowed;
+        }
+
+        private GenreBits with(String key) {
+            if (bits.size() == Long.SIZE) {
+                logger.warn("More than {} genres in one directory, matching genres from '{}' on by name", Long.SIZE, key);
+                return new GenreBits(bits, true);
+            }
+
+            Map<String, Integer> newBits = new HashMap<>(bits);
+            newBits.put(key, bits.size());
+            return new GenreBits(newBits, false);
+        }
+    }
+
+    public static class Page {
+        private final List<String> paths;
+        private final PageCursor next;
+
+        private Page(List<String> paths, PageCursor next) {
+            this.paths = paths;
+            this.next = next;
+        }
+
+        public List<String> getPaths() {
+            return paths;
+        }
+
+        /**
+         * @return - Cursor to the next page, or null if this is the last page
+         */
+        public PageCursor getNext() {
+            return next;
+        }
+    }
+
+    /**
+     * Year range, minimum rating and genres to match. Rows missing a value don't match a filter on it,
+     * and a row matches a genre filter if it has any of the genres.
+     */
+    public static class Filter {
+        public static final Filter NONE = new Filter(null, null, null, null);
+        private final boolean filterYears;
+        private final int yearFrom;
+        private final int yearTo;
+        private final boolean filterRating;
+        private final float minRating;
+        private final boolean filterGenres;
+        private final Set<String> genreKeys;
+
+        private Filter(Integer yearFrom, Integer yearTo, Float minRating, Set<String> genres) {
+            this.filterYears = yearFrom != null || yearTo != null;
+            this.yearFrom = yearFrom == null ? Integer.MIN_VALUE : yearFrom;
+            this.yearTo = yearTo == null ? Integer.MAX_VALUE : yearTo;
+            this.filterRating = minRating != null;
+            this.minRating = minRating == null ? 0 : minRating;
+            this.filterGenres = genres != null && !genres.isEmpty();
+
+            this.genreKeys = new HashSet<>();
+            if (filterGenres)
+                genres.forEach(genre -> genreKeys.add(genreKey(genre)));
+        }
+
+        public static Filter of(MovieSearchCriteria searchCriteria) {
+            Set<String> genres = searchCriteria.getGenres();
+            if (searchCriteria.getYearFrom() == null && searchCriteria.getYearTo() == null
+                    && searchCriteria.getMinRating() == null && (genres == null || genres.isEmpty()))
+                return NONE;
+
+            return new Filter(searchCriteria.getYearFrom(), searchCriteria.getYearTo(), searchCriteria.getMinRating(), genres);
+        }
+
+        /**
+         * Looks the genres up in the index's numbering once, rather than for every row
+         */
+        private Matcher bind(DirectoryIndex index) {
+            long mask = 0;
+            Set<String> unnumbered = new HashSet<>();
+            for (String key : genreKeys) {
+                Integer bit = index.genreBits.bits.get(key);
+                if (bit != null) {
+                    mask |= 1L << bit;
+                } else if (index.genreBits.overflowed) {
+                    unnumbered.add(key);
+                }
+            }
+
+            return new Matcher(index, mask, unnumbered);
+        }
+
+        private class Matcher {
+            private final DirectoryIndex index;
+            private final long genreMask;
+            private final Set<String> unnumberedGenres;
+
+            private Matcher(DirectoryIndex index, long genreMask, Set<String> unnumberedGenres) {
+                this.index = index;
+                this.genreMask = genreMask;
+                this.unnumberedGenres = unnumberedGenres;
+            }
+
+            private boolean matches(int row) {
+                if (filterYears) {
+                    int year = index.years[row];
+                    if (year == UNKNOWN_YEAR || year < yearFrom || year > yearTo)
+                        return false;
+                }
+
+                if (filterRating) {
+                    float rating = index.ratings[row];
+                    if (rating == UNKNOWN_RATING || rating < minRating)
+                        return false;
+                }
+
+                return !filterGenres || (index.genres[row] & genreMask) != 0
+                        || !unnumberedGenres.isEmpty() && index.hasGenre(row, unnumberedGenres);
+            }
+        }
+    }
+}
@@ -0,0 +1,349 @@
+package com.github.rahmnathan.localmovie.service.control;
+
+import com.github.rahmnathan.localmovie.domain.MediaPath;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * In-memory tree of every file and directory under the media roots, as paths relative to their root. Each directory
+ * maps to the set of its children, merged across roots, and each path maps to a bitmask of the roots that have it,
+ * so listings, counts, existence checks and resolving a path to its file never touch the filesystem. Roots are
+ * given in priority order, and a path on more than one root resolves to the first. Paths are held as interned
+ * {@link MediaPath}s, so an episode costs one map entry per index rather than a copy of its full path string.
+ * The tree is built by walking all roots in parallel and kept current with add and remove calls from directory
+ * events. Reads don't lock, and changes only lock to merge what they found on disk, so a slow root never holds up
+ * other changes. A rebuild walks into a new tree while changes still go to the current one, and changes made during
+ * the walk are replayed onto the new tree before it replaces the current one. The rebuild reports the paths that
+ * differ between the two, which are the changes no event was seen for.
+ */
+public class LibraryTree {
+    private static final int MAX_ROOTS = Integer.SIZE;
+    private final Logger logger = LoggerFactory.getLogger(LibraryTree.class.getName());
+    private final Object writeLock = new Object();
+    private final String[] mediaPaths;
+    private volatile Tree tree = new Tree();
+    private List<Change> changesDuringRebuild;
+
+    /**
+     * @param mediaPaths - Media roots, highest priority first
+     */
+    public LibraryTree(String[] mediaPaths) {
+        if (mediaPaths.length > MAX_ROOTS)
+            throw new IllegalArgumentException("At most " + MAX_ROOTS + " media paths are supported");
+
+        this.mediaPaths = mediaPaths;
+    }
+
+    /**
+     * Walks every media root, one thread per root
+     * @return - Paths the new tree gained or lost compared to the tree it replaced, which is empty for the first build
+     */
+    public Diff rebuild() {
+        synchronized (writeLock) {
+            changesDuringRebuild = new ArrayList<>();
+        }
+
+        long start = System.currentTimeMillis();
+        Tree rebuilt = new Tree();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, mediaPaths.length));
+        try {
+            CompletableFuture.allOf(IntStream.range(0, mediaPaths.length)
+                    .mapToObj(rootIndex -> CompletableFuture.runAsync(() -> walk(rebuilt, rootIndex, MediaPath.ROOT), executor))
+                    .toArray(CompletableFuture[]::new)).join();
+        } finally {
+            executor.shutdown();
+        }
+
+        Diff diff;
+        synchronized (writeLock) {
+            changesDuringRebuild.forEach(change -> change.apply(rebuilt));
+            changesDuringRebuild = null;
+            diff = tree.locations.isEmpty() ? new Diff() : new Diff(tree, rebuilt);
+            tree = rebuilt;
+        }
+
+        logger.info("Built library tree of {} directories and {} paths in {}ms - added: {} removed: {}",
+                rebuilt.directories.size(), rebuilt.locations.size(), System.currentTimeMillis() - start,
+                diff.added.size(), diff.removed.size());
+        return diff;
+    }
+
+    /**
+     * @param directory - Relative path of a directory, or an empty string for the roots
+     * @return - Relative paths of the directory's children, which is empty if there is no such directory
+     */
+    public Set<String> list(String directory) {
+        Set<MediaPath> children = children(directory);
+        if (children == null)
+            return Collections.emptySet();
+
+        return children.stream()
+                .map(MediaPath::toString)
+                .collect(Collectors.toSet());
+    }
+
+    public int count(String directory) {
+        Set<MediaPath> children = children(directory);
+        return children == null ? 0 : children.size();
+    }
+
+    public boolean exists(String path) {
+        MediaPath mediaPath = MediaPath.find(path);
+        return mediaPath == MediaPath.ROOT || mediaPath != null && tree.locations.containsKey(mediaPath);
+    }
+
+    /**
+     * @param path - Relative path of a file or directory
+     * @return - The path on the highest priority root that has it, or empty if no root has it
+     */
+    public Optional<Path> resolve(String path) {
+        MediaPath mediaPath = MediaPath.find(path);
+        Integer roots = mediaPath == null ? null : tree.locations.get(mediaPath);
+        if (roots == null || roots == 0)
+            return Optional.empty();
+
+        return Optional.of(Paths.get(mediaPaths[Integer.numberOfTrailingZeros(roots)] + path));
+    }
+
+    /**
+     * Adds the path, and everything under it if it's a directory
+     * @param path - Relative path of a new file or directory
+     */
+    public void add(String path) {
+        Change change = added(MediaPath.of(path));
+        synchronized (writeLock) {
+            apply(change);
+        }
+    }
+
+    /**
+     * Removes the path and everything under it from the roots that no longer have it
+     * @param path - Relative path of a deleted file or directory
+     */
+    public void remove(String path) {
+        // A path that was never interned was never added, so there is nothing to remove
+        MediaPath mediaPath = MediaPath.find(path);
+        if (mediaPath == null)
+            return;
+
+        Change change = removed(mediaPath);
+        synchronized (writeLock) {
+            apply(change);
+        }
+    }
+
+    /**
+     * @return - Number of directories in the tree
+     */
+    public int size() {
+        return tree.directories.size();
+    }
+
+    /**
+     * Paths that were never seen are looked up without interning them, since they can come from requests
+     */
+    private Set<MediaPath> children(String directory) {
+        MediaPath mediaPath = MediaPath.find(directory);
+        return mediaPath == null ? null : tree.directories.get(mediaPath);
+    }
+
+    /**
+     * Each root is checked for the path, so an event seen by one root's watcher doesn't hide or lose the others. The
+     * roots that have it are walked into a tree of their own, to be merged once the walk is done.
+     */
+    private Change added(MediaPath path) {
+        Tree found = new Tree();
+        for (int rootIndex = 0; rootIndex < mediaPaths.length; rootIndex++) {
+            if (Files.exists(Paths.get(mediaPaths[rootIndex] + path))) {
+                found.add(path, 1 << rootIndex);
+                walk(found, rootIndex, path);
+            }
+        }
+
+        return new Change(path, found, 0);
+    }
+
+    private Change removed(MediaPath path) {
+        int missingRoots = 0;
+        for (int rootIndex = 0; rootIndex < mediaPaths.length; rootIndex++) {
+            if (!Files.exists(Paths.get(mediaPaths[rootIndex] + path)))
+                missingRoots |= 1 << rootIndex;
+        }
+
+        return new Change(path, null, missingRoots);
+    }
+
+    private void apply(Change change) {
+        change.apply(tree);
+        if (changesDuringRebuild != null)
+            changesDuringRebuild.add(change);
+    }
+
+    /**
+     * Each visited path is resolved against the directory being walked, so no path string is ever split
+     */
+    private void walk(Tree tree, int rootIndex, MediaPath start) {
+        Path startPath = Paths.get(mediaPaths[rootIndex]).resolve(start.toString());
+        if (!Files.isDirectory(startPath))
+            return;
+
+        Deque<MediaPath> directories = new ArrayDeque<>();
+        try {
+            Files.walkFileTree(startPath, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) {
+                    MediaPath mediaPath = directories.isEmpty() ? start : directories.peek().resolve(directory.getFileName().toString());
+                    directories.push(mediaPath);
+                    tree.directories.computeIfAbsent(mediaPath, key -> ConcurrentHashMap.newKeySet());
+                    if (mediaPath != MediaPath.ROOT)
+                        tree.add(mediaPath, 1 << rootIndex);
+
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path directory, IOException e) {
+                    directories.pop();
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    tree.add(directories.peek().resolve(file.getFileName().toString()), 1 << rootIndex);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    logger.warn("Skipping unreadable path - {} - {}", file, e.toString());
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            logger.error("Failure walking media path - " + startPath, e);
+        }
+    }
+
+    private static class Tree {
+        private final Map<MediaPath, Set<MediaPath>> directories = new ConcurrentHashMap<>();
+        private final Map<MediaPath, Integer> locations = new ConcurrentHashMap<>();
+
+        /**
+         * Ancestors the roots don't have yet are added too, so a file whose directory was created without an event
+         * of its own can still be listed from above
+         */
+        private void add(MediaPath path, int roots) {
+            for (MediaPath current = path; current != MediaPath.ROOT; current = current.getParent()) {
+                Integer currentRoots = locations.get(current);
+                if (current != path && currentRoots != null && (currentRoots & roots) == roots)
+                    return;
+
+                directories.computeIfAbsent(current.getParent(), key -> ConcurrentHashMap.newKeySet()).add(current);
+                locations.merge(current, roots, (first, second) -> first | second);
+            }
+        }
+
+        private void addAll(Tree tree) {
+            tree.directories.keySet().forEach(directory -> directories.computeIfAbsent(directory, key -> ConcurrentHashMap.newKeySet()));
+            tree.locations.forEach(this::add);
+        }
+
+        /**
+         * Takes the roots off the path and everything under it, and removes whatever no root has anymore. Only the
+         * removed subtree is visited, by following the children of each directory down from the path.
+         */
+        private void remove(MediaPath path, int roots) {
+            if (!locations.containsKey(path))
+                return;
+
+            removeFrom(path, roots);
+            if (!locations.containsKey(path)) {
+                Set<MediaPath> siblings = directories.get(path.getParent());
+                if (siblings != null)
+                    siblings.remove(path);
+            }
+        }
+
+        private void removeFrom(MediaPath path, int roots) {
+            Set<MediaPath> children = directories.get(path);
+            if (children != null) {
+                children.forEach(child -> removeFrom(child, roots));
+                children.removeIf(child -> !locations.containsKey(child));
+            }
+
+            Integer remainingRoots = locations.computeIfPresent(path, (location, locationRoots) ->
+                    (locationRoots & ~roots) == 0 ? null : locationRoots & ~roots);
+            if (remainingRoots == null)
+                directories.remove(path);
+        }
+    }
+
+    /**
+     * Paths one tree has that another doesn't
+     */
+    public static class Diff {
+        private final Set<MediaPath> added;
+        private final Set<MediaPath> removed;
+
+        private Diff() {
+            this.added = Collections.emptySet();
+            this.removed = Collections.emptySet();
+        }
+
+        private Diff(Tree oldTree, Tree newTree) {
+            this.added = difference(newTree, oldTree);
+            this.removed = difference(oldTree, newTree);
+        }
+
+        private static Set<MediaPath> difference(Tree tree, Tree other) {
+            return tree.locations.keySet().stream()
+                    .filter(path -> !other.locations.containsKey(path))
+                    .collect(Collectors.toSet());
+        }
+
+        public Set<MediaPath> getAdded() {
+            return added;
+        }
+
+        public Set<MediaPath> getRemoved() {
+            return removed;
+        }
+
+        public boolean isEmpty() {
+            return added.isEmpty() && removed.isEmpty();
+        }
+    }
+
+    /**
+     * What a directory event found on disk, which is the same whichever tree it's applied to
+     */
+    private static class Change {
+        private final MediaPath path;
+        private final Tree found;
+        private final int missingRoots;
+
+        private Change(MediaPath path, Tree found, int missingRoots) {
+            this.path = path;
+            this.found = found;
+            this.missingRoots = missingRoots;
+        }
+
+        private void apply(Tree tree) {
+            if (found != null)
+                tree.addAll(found);
+            if (missingRoots != 0)
+                tree.remove(path, missingRoots);
+        }
+    }
+}
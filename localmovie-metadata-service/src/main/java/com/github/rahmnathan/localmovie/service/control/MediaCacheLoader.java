@@ -1,63 +1,201 @@
 package com.github.rahmnathan.localmovie.service.control;
 
 import com.github.rahmnathan.localmovie.domain.MediaFile;
-import com.github.rahmnathan.omdb.boundary.OmdbMovieProvider;
-import com.github.rahmnathan.omdb.exception.MovieProviderException;
+import com.github.rahmnathan.localmovie.domain.MediaPath;
+import com.github.rahmnathan.localmovie.service.boundary.PosterStore;
+import com.github.rahmnathan.omdb.data.Movie;
+import com.github.rahmnathan.localmovie.service.persistence.MediaFileLog;
 import com.github.rahmnathan.localmovie.service.persistence.MovieRepository;
-import com.google.common.cache.CacheLoader;
-import io.micrometer.core.instrument.Metrics;
-import io.micrometer.core.instrument.Timer;
+import com.github.benmanes.caffeine.cache.CacheLoader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.ManagedBean;
-import java.io.File;
-import java.util.Optional;
+import java.util.*;
+import java.util.concurrent.*;
 
 @ManagedBean
-public class MediaCacheLoader extends CacheLoader<String, MediaFile> {
+public class MediaCacheLoader implements CacheLoader<String, MediaFile> {
     private final Logger logger = LoggerFactory.getLogger(MediaCacheLoader.class.getName());
-    private static final Timer MOVIE_PROVIDER_TIMER = Metrics.timer("localmovies.omdb.timer");
-    private final OmdbMovieProvider movieProvider;
+    private final ThrottledMovieProvider movieProvider;
     private final MovieRepository repository;
+    private final PosterStore posterStore;
+    private final MediaFileLog mediaFileLog;
+    private final ProviderRetryQueue retryQueue;
 
-    public MediaCacheLoader(MovieRepository repository, OmdbMovieProvider movieProvider) {
+    public MediaCacheLoader(MovieRepository repository, ThrottledMovieProvider movieProvider, PosterStore posterStore,
+                            MediaFileLog mediaFileLog, ProviderRetryQueue retryQueue) {
         this.movieProvider = movieProvider;
+        this.retryQueue = retryQueue;
+        this.mediaFileLog = mediaFileLog;
         this.repository = repository;
+        this.posterStore = posterStore;
     }
 
     @Override
     public MediaFile load(String path) {
+        Optional<MediaFile> logged = mediaFileLog.get(path);
+        if (logged.isPresent())
+            return logged.get();
+
+        return reload(path, null);
+    }
+
+    /**
+     * Loads a batch of misses, such as a cold directory listing, with one database query for everything the local log
+     * doesn't have. Only paths the database doesn't know either go to the movie provider, and are looked up together.
+     * @param paths - Paths missing from the cache
+     * @return - MediaFiles by path
+     */
+    @Override
+    public Map<String, MediaFile> loadAll(Iterable<? extends String> paths) {
+        Map<String, MediaFile> mediaFiles = new HashMap<>();
+        List<String> unlogged = new ArrayList<>();
+        for (String path : paths) {
+            Optional<MediaFile> logged = mediaFileLog.get(path);
+            if (logged.isPresent()) {
+                mediaFiles.put(path, logged.get());
+            } else {
+                unlogged.add(path);
+            }
+        }
+
+        if (unlogged.isEmpty())
+            return mediaFiles;
+
+        logger.info("Getting {} media files from database", unlogged.size());
+        repository.findAllById(unlogged).forEach(mediaFile -> mediaFiles.put(mediaFile.getPath(), cache(mediaFile)));
+
+        List<String> topLevelMisses = new ArrayList<>();
+        for (String path : unlogged) {
+            if (mediaFiles.containsKey(path))
+                continue;
+
+            if (MediaPath.of(path).isTopLevel()) {
+                topLevelMisses.add(path);
+            } else {
+                mediaFiles.put(path, cache(loadSeriesParentInfo(path)));
+            }
+        }
+
+        mediaFiles.putAll(loadAllFromProvider(topLevelMisses));
+        return mediaFiles;
+    }
+
+    /**
+     * Refreshes skip the local log so changes in the database reach the cache, and the log is updated with the result
+     */
+    @Override
+    public MediaFile reload(String path, MediaFile oldValue) {
+        return cache(loadMediaFile(path));
+    }
+
+    /**
+     * Prepares a MediaFile read in bulk from the database for the cache. Entries the local log already holds at the
+     * same version are taken from the log, so their posters aren't decoded and hashed again on every startup.
+     * @param mediaFile - MediaFile as stored in the database
+     * @return - MediaFile ready to be cached
+     */
+    public MediaFile prepare(MediaFile mediaFile) {
+        Optional<MediaFile> logged = mediaFileLog.get(mediaFile.getPath());
+        if (logged.isPresent() && logged.get().getVersion() == mediaFile.getVersion())
+            return logged.get();
+
+        return cache(mediaFile);
+    }
+
+    /**
+     * Degraded metadata is kept out of the local log so a restart doesn't bring it back after the provider recovers
+     */
+    private MediaFile cache(MediaFile mediaFile) {
+        if (retryQueue.isPending(mediaFile.getPath()))
+            return mediaFile;
+
+        MediaFile cacheable = storePoster(mediaFile);
+        mediaFileLog.put(cacheable);
+        return cacheable;
+    }
+
+    /**
+     * Moves the inline poster into the poster store so the cached copy only holds its hash.
+     * The database keeps the original image.
+     */
+    private MediaFile storePoster(MediaFile mediaFile) {
+        if (mediaFile.getMovie() == null || mediaFile.getPosterHash() != null)
+            return mediaFile;
+
+        String posterHash = posterStore.store(mediaFile.getMovie().getImage());
+        return MediaFile.Builder.copyWithPosterHash(mediaFile, posterHash);
+    }
+
+    private MediaFile loadMediaFile(String path) {
         Optional<MediaFile> mediaFile = repository.findById(path);
         if (mediaFile.isPresent()) {
             logger.info("Getting from database - {}", path);
             return mediaFile.get();
-        } else if (PathUtils.isTopLevel(path)) {
+        } else if (MediaPath.of(path).isTopLevel()) {
             return loadMediaInfoFromProvider(path);
         } else {
             return loadSeriesParentInfo(path);
         }
     }
 
+    private Map<String, MediaFile> loadAllFromProvider(List<String> paths) {
+        Map<String, MediaFile> mediaFiles = new HashMap<>();
+        if (paths.isEmpty())
+            return mediaFiles;
+
+        logger.info("Loading {} media files from provider", paths.size());
+        Map<String, CompletableFuture<Movie>> lookups = new LinkedHashMap<>();
+        paths.forEach(path -> lookups.put(path, movieProvider.getMovieAsync(MediaPath.of(path).getTitle())));
+        lookups.forEach((path, lookup) -> mediaFiles.put(path, cache(saveMediaFile(path, awaitMovie(path, lookup)))));
+
+        return mediaFiles;
+    }
+
     private MediaFile loadMediaInfoFromProvider(String path) {
         logger.info("Loading MediaFile from provider - {}", path);
-        String fileName = new File(path).getName();
-        String title = PathUtils.getTitle(fileName);
+        String title = MediaPath.of(path).getTitle();
+        return saveMediaFile(path, awaitMovie(path, movieProvider.getMovieAsync(title)));
+    }
 
-        MediaFile.Builder builder = MediaFile.Builder.newInstance()
+    private Movie awaitMovie(String path, CompletableFuture<Movie> lookup) {
+        try {
+            return lookup.join();
+        } catch (CompletionException | CancellationException e) {
+            if (e.getCause() instanceof MovieProviderUnavailableException) {
+                logger.warn("{} - {}", path, e.getCause().getMessage());
+            } else {
+                logger.error("Error getting movie from provider - " + path, e.getCause() != null ? e.getCause() : e);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * A failed lookup isn't saved. The path gets filename-only metadata right away and the lookup is retried later.
+     */
+    private MediaFile saveMediaFile(String path, Movie movie) {
+        MediaPath mediaPath = MediaPath.of(path);
+        String fileName = mediaPath.getName();
+        if (movie == null) {
+            retryQueue.schedule(path);
+            return MediaFile.Builder.newInstance()
+                    .setFileName(fileName)
+                    .setPath(path)
+                    .setViews(0)
+                    .setMovie(Movie.Builder.newInstance().setTitle(mediaPath.getTitle()).build())
+                    .build();
+        }
+
+        retryQueue.remove(path);
+        MediaFile mediaFile = MediaFile.Builder.newInstance()
                 .setFileName(fileName)
                 .setPath(path)
-                .setViews(0);
+                .setViews(0)
+                .setMovie(movie)
+                .build();
 
-        MOVIE_PROVIDER_TIMER.record(() -> {
-            try {
-                builder.setMovie(movieProvider.getMovie(title));
-            } catch (MovieProviderException e){
-                logger.error("Error getting movie from provider", e);
-            }
-        });
-
-        MediaFile mediaFile = builder.build();
         repository.save(mediaFile);
         return mediaFile;
     }
@@ -65,11 +203,17 @@ public class MediaCacheLoader extends CacheLoader<String, MediaFile> {
     private MediaFile loadSeriesParentInfo(String path) {
         logger.info("Getting info from parent - {}", path);
 
-        String filename = new File(path).getName();
-        File file = PathUtils.getParentFile(path);
-        logger.info("{} - Parent resolved to: {}", path, file.getPath());
+        MediaPath mediaPath = MediaPath.of(path);
+        String parentPath = mediaPath.getAncestor(2).toString();
+        logger.info("{} - Parent resolved to: {}", path, parentPath);
+
+        MediaFile parentInfo = load(parentPath);
+        if (retryQueue.isPending(parentPath)) {
+            retryQueue.schedule(path);
+        } else {
+            retryQueue.remove(path);
+        }
 
-        MediaFile parentInfo = load(file.getPath());
-        return MediaFile.Builder.copyWithNewTitle(parentInfo, filename, PathUtils.getTitle(filename), path);
+        return MediaFile.Builder.copyWithNewTitle(parentInfo, mediaPath.getName(), mediaPath.getTitle(), path);
     }
 }
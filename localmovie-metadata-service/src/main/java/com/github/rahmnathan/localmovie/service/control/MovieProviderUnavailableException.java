@@ -0,0 +1,10 @@
+package com.github.rahmnathan.localmovie.service.control;
+
+/**
+ * Raised without calling the movie provider, when its circuit is open or the title failed recently
+ */
+public class MovieProviderUnavailableException extends RuntimeException {
+    public MovieProviderUnavailableException(String message) {
+        super(message);
+    }
+}
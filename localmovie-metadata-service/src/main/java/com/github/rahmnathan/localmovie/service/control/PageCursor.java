@@ -0,0 +1,91 @@
+package com.github.rahmnathan.localmovie.service.control;
+
+import com.github.rahmnathan.localmovie.domain.MovieOrder;
+
+import java.io.*;
+import java.util.Base64;
+
+/**
+ * Position after the last entry of a page, handed to clients as an opaque token. It records the directory snapshot
+ * the page was read from, so the next page continues from the same position of the same snapshot. If that snapshot
+ * is gone, the sort key and path of the last entry find the same place in the current one.
+ */
+public class PageCursor {
+    private static final byte FORMAT = 1;
+    private final long version;
+    private final MovieOrder order;
+    private final int position;
+    private final long sortKey;
+    private final String path;
+
+    PageCursor(long version, MovieOrder order, int position, long sortKey, String path) {
+        this.version = version;
+        this.order = order;
+        this.position = position;
+        this.sortKey = sortKey;
+        this.path = path;
+    }
+
+    /**
+     * @param token - Token from {@link #encode()}
+     * @return - The cursor
+     * @throws IllegalArgumentException if the token isn't a valid cursor
+     */
+    public static PageCursor decode(String token) {
+        try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(Base64.getUrlDecoder().decode(token)))) {
+            if (input.readByte() != FORMAT)
+                throw new IllegalArgumentException("Unknown cursor format");
+
+            long version = input.readLong();
+            int order = input.readByte();
+            int position = input.readInt();
+            long sortKey = input.readLong();
+            String path = input.readUTF();
+            if (order >= MovieOrder.values().length || position < 0)
+                throw new IllegalArgumentException("Invalid cursor");
+
+            return new PageCursor(version, order < 0 ? null : MovieOrder.values()[order], position, sortKey, path);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid cursor", e);
+        }
+    }
+
+    public String encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream output = new DataOutputStream(bytes)) {
+            output.writeByte(FORMAT);
+            output.writeLong(version);
+            output.writeByte(order == null ? -1 : order.ordinal());
+            output.writeInt(position);
+            output.writeLong(sortKey);
+            output.writeUTF(path);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+    }
+
+    /**
+     * @return - Version of the directory snapshot the cursor points into
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public MovieOrder getOrder() {
+        return order;
+    }
+
+    int getPosition() {
+        return position;
+    }
+
+    long getSortKey() {
+        return sortKey;
+    }
+
+    String getPath() {
+        return path;
+    }
+}
@@ -0,0 +1,133 @@
+package com.github.rahmnathan.localmovie.service.control;
+
+import com.github.rahmnathan.localmovie.domain.PosterSize;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+
+import javax.annotation.ManagedBean;
+import javax.annotation.PreDestroy;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+/**
+ * Renders the smaller poster sizes as progressive JPEGs on a small bounded pool, so that clients
+ * scrolling a grid over mobile data can start drawing posters before they have fully arrived.
+ */
+@ManagedBean
+public class PosterResizer {
+    private static final Timer RESIZE_TIMER = Metrics.timer("localmovies.poster.resize.timer");
+    private static final Counter REJECTED_COUNTER = Metrics.counter("localmovies.poster.resize.rejected.counter");
+    private final Logger logger = LoggerFactory.getLogger(PosterResizer.class.getName());
+    private final Set<Path> pendingResizes = ConcurrentHashMap.newKeySet();
+    private final ThreadPoolExecutor executor;
+    private final float quality;
+
+    public PosterResizer(@Value("${poster.resize.threads:2}") int threads,
+                         @Value("${poster.resize.quality:0.8}") float quality) {
+        logger.info("Poster resize threads: {} quality: {}", threads, quality);
+        this.quality = quality;
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(1000));
+    }
+
+    /**
+     * @param original - Original poster
+     * @param destination - Location of each resized poster
+     */
+    public void resizeAsync(Path original, Function<PosterSize, Path> destination) {
+        if (!pendingResizes.add(original))
+            return;
+
+        try {
+            executor.execute(() -> {
+                try {
+                    RESIZE_TIMER.record(() -> resize(original, destination));
+                } finally {
+                    pendingResizes.remove(original);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            REJECTED_COUNTER.increment();
+            pendingResizes.remove(original);
+        }
+    }
+
+    private void resize(Path original, Function<PosterSize, Path> destination) {
+        try {
+            BufferedImage image = ImageIO.read(original.toFile());
+            if (image == null) {
+                logger.warn("Unreadable poster - {}", original);
+                return;
+            }
+
+            for (PosterSize size : PosterSize.values()) {
+                Path resized = destination.apply(size);
+                if (size == PosterSize.ORIGINAL || Files.exists(resized))
+                    continue;
+
+                writeProgressiveJpeg(scale(image, size.getWidth()), resized);
+            }
+        } catch (IOException e) {
+            logger.error("Failure resizing poster " + original, e);
+        }
+    }
+
+    private BufferedImage scale(BufferedImage image, int width) {
+        int targetWidth = Math.min(width, image.getWidth());
+        int targetHeight = Math.max(1, Math.round((float) image.getHeight() * targetWidth / image.getWidth()));
+
+        // JPEG has no alpha channel, so always draw onto an RGB image
+        BufferedImage scaled = new BufferedImage(targetWidth, targetHeight, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = scaled.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(image, 0, 0, targetWidth, targetHeight, null);
+        } finally {
+            graphics.dispose();
+        }
+
+        return scaled;
+    }
+
+    private void writeProgressiveJpeg(BufferedImage image, Path destination) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality);
+
+        Path tempFile = Files.createTempFile(destination.getParent(), destination.getFileName().toString(), ".tmp");
+        try {
+            try (ImageOutputStream output = ImageIO.createImageOutputStream(tempFile.toFile())) {
+                writer.setOutput(output);
+                writer.write(null, new IIOImage(image, null, null), param);
+            } finally {
+                writer.dispose();
+            }
+            Files.move(tempFile, destination, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,85 @@
+package com.github.rahmnathan.localmovie.service.control;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+
+import javax.annotation.ManagedBean;
+import javax.annotation.PreDestroy;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * Paths served with filename-only metadata because the movie provider failed. Each is retried in the
+ * background with exponential backoff until a lookup succeeds or the path is removed.
+ */
+@ManagedBean
+public class ProviderRetryQueue {
+    private static final Counter RETRY_COUNTER = Metrics.counter("localmovies.omdb.retry.counter");
+    private final Logger logger = LoggerFactory.getLogger(ProviderRetryQueue.class.getName());
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final Map<String, Integer> attempts = new ConcurrentHashMap<>();
+    private final Set<String> scheduled = ConcurrentHashMap.newKeySet();
+    private final long initialDelaySeconds;
+    private final long maxDelaySeconds;
+    private volatile Consumer<String> retryAction = path -> {};
+
+    public ProviderRetryQueue(@Value("${omdb.retry.initial.seconds:300}") long initialDelaySeconds,
+                              @Value("${omdb.retry.max.seconds:21600}") long maxDelaySeconds) {
+        this.initialDelaySeconds = initialDelaySeconds;
+        this.maxDelaySeconds = maxDelaySeconds;
+        Metrics.gauge("localmovies.omdb.retry.pending", attempts, Map::size);
+    }
+
+    /**
+     * @param retryAction - Reloads the metadata of a path
+     */
+    public void setRetryAction(Consumer<String> retryAction) {
+        this.retryAction = retryAction;
+    }
+
+    /**
+     * Records a failed lookup and schedules the next attempt, unless one is already scheduled
+     * @param path - Path whose metadata is degraded
+     */
+    public void schedule(String path) {
+        int attempt = attempts.merge(path, 1, Integer::sum);
+        if (!scheduled.add(path))
+            return;
+
+        long delay = Math.min(maxDelaySeconds, initialDelaySeconds << Math.min(attempt - 1, 20));
+        logger.info("Retrying provider lookup in {} seconds - attempt: {} path: {}", delay, attempt, path);
+        executor.schedule(() -> {
+            scheduled.remove(path);
+            if (!attempts.containsKey(path))
+                return;
+
+            RETRY_COUNTER.increment();
+            retryAction.accept(path);
+        }, delay, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @param path - Path whose metadata no longer needs to be retried
+     */
+    public void remove(String path) {
+        attempts.remove(path);
+    }
+
+    /**
+     * @param path - Path to check
+     * @return - Whether the path currently has degraded metadata
+     */
+    public boolean isPending(String path) {
+        return attempts.containsKey(path);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,346 @@
+package com.github.rahmnathan.localmovie.service.control;
+
+import com.github.rahmnathan.localmovie.domain.MediaFile;
+import com.github.rahmnathan.localmovie.domain.MediaPath;
+import com.github.rahmnathan.omdb.data.Movie;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Inverted index over movie titles, actors, genres and plots. Each term maps to the documents containing it,
+ * weighted by the field it was found in, and each trigram maps to the terms containing it, so a query term
+ * also matches terms it is a prefix of or is a typo away from. Posting lists are only ever appended to in
+ * place or replaced, so searches read without locking while updates are applied one at a time. Only top level
+ * entries are indexed, as seasons and episodes share the metadata of their series.
+ */
+public class SearchIndex {
+    private static final float TITLE_WEIGHT = 4;
+    private static final float ACTORS_WEIGHT = 2;
+    private static final float GENRE_WEIGHT = 1.5f;
+    private static final float PLOT_WEIGHT = 1;
+    private static final float PREFIX_SIMILARITY = 0.8f;
+    private static final float MIN_SIMILARITY = 0.5f;
+    private static final int MIN_TERM_LENGTH = 2;
+    private static final Pattern TERM_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    private final Map<String, Integer> documentIds = new ConcurrentHashMap<>();
+    private final Map<Integer, Document> documents = new ConcurrentHashMap<>();
+    private final Map<String, Postings> postings = new ConcurrentHashMap<>();
+    private final Map<String, String[]> grams = new ConcurrentHashMap<>();
+    private final Deque<Integer> freeDocumentIds = new ArrayDeque<>();
+    private volatile String[] documentPaths = new String[64];
+    private volatile int documentIdLimit;
+
+    /**
+     * @param mediaFile - Entry to index, replacing any entry with the same path
+     */
+    public synchronized void add(MediaFile mediaFile) {
+        Movie movie = mediaFile.getMovie();
+        if (mediaFile.getPath() == null || movie == null || !MediaPath.of(mediaFile.getPath()).isTopLevel())
+            return;
+
+        // Directory listings re-add their entries on every rebuild, so skip entries that haven't changed
+        int fingerprint = Objects.hash(movie.getTitle(), movie.getActors(), movie.getGenre(), movie.getPlot());
+        Integer existingId = documentIds.get(mediaFile.getPath());
+        if (existingId != null && documents.get(existingId).fingerprint == fingerprint)
+            return;
+
+        remove(mediaFile.getPath());
+
+        Map<String, Float> termWeights = new HashMap<>();
+        addTerms(termWeights, movie.getTitle(), TITLE_WEIGHT);
+        addTerms(termWeights, movie.getActors(), ACTORS_WEIGHT);
+        addTerms(termWeights, movie.getGenre(), GENRE_WEIGHT);
+        addTerms(termWeights, movie.getPlot(), PLOT_WEIGHT);
+
+        int documentId = freeDocumentIds.isEmpty() ? documentIdLimit : freeDocumentIds.pop();
+        documents.put(documentId, new Document(termWeights.keySet().toArray(new String[0]), fingerprint));
+        documentIds.put(mediaFile.getPath(), documentId);
+        if (documentId >= documentPaths.length)
+            documentPaths = Arrays.copyOf(documentPaths, documentPaths.length * 2);
+
+        documentPaths[documentId] = mediaFile.getPath();
+        documentIdLimit = Math.max(documentIdLimit, documentId + 1);
+
+        termWeights.forEach((term, weight) -> {
+            Postings termPostings = postings.get(term);
+            if (termPostings == null)
+                addGrams(term);
+
+            postings.put(term, termPostings == null ? new Postings(documentId, weight) : termPostings.with(documentId, weight));
+        });
+    }
+
+    /**
+     * @param path - Path of the entry to remove from the index
+     */
+    public synchronized void remove(String path) {
+        Integer documentId = documentIds.remove(path);
+        if (documentId == null)
+            return;
+
+        Document document = documents.remove(documentId);
+        documentPaths[documentId] = null;
+        for (String term : document.terms) {
+            Postings termPostings = postings.get(term).without(documentId);
+            if (termPostings.size == 0) {
+                postings.remove(term);
+                removeGrams(term);
+            } else {
+                postings.put(term, termPostings);
+            }
+        }
+
+        freeDocumentIds.push(documentId);
+    }
+
+    /**
+     * @param query - Free text query
+     * @param page - Zero based page number
+     * @param itemsPerPage - Page size
+     * @return - Paths of the matching entries, best match first
+     */
+    public List<String> search(String query, int page, int itemsPerPage) {
+        List<String> queryTerms = tokenize(query);
+        if (queryTerms.isEmpty())
+            return Collections.emptyList();
+
+        int limit = documentIdLimit;
+        String[] paths = documentPaths;
+        float[] scores = new float[limit];
+        int[] matchedTerms = new int[limit];
+        float[] termScores = new float[limit];
+        int[] touched = new int[limit];
+        int touchedCount = 0;
+
+        for (String queryTerm : queryTerms) {
+            for (Map.Entry<String, Float> match : matchTerms(queryTerm).entrySet()) {
+                Postings termPostings = postings.get(match.getKey());
+                if (termPostings == null)
+                    continue;
+
+                for (int i = 0; i < termPostings.size; i++) {
+                    int documentId = termPostings.documentIds[i];
+                    if (documentId >= limit)
+                        continue;
+
+                    float score = termPostings.weights[i] * match.getValue();
+                    if (termScores[documentId] == 0 && matchedTerms[documentId] == 0 && scores[documentId] == 0)
+                        touched[touchedCount++] = documentId;
+
+                    termScores[documentId] = Math.max(termScores[documentId], score);
+                }
+            }
+
+            for (int i = 0; i < touchedCount; i++) {
+                int documentId = touched[i];
+                if (termScores[documentId] > 0) {
+                    scores[documentId] += termScores[documentId];
+                    matchedTerms[documentId]++;
+                    termScores[documentId] = 0;
+                }
+            }
+        }
+
+        // Entries matching every query term rank ahead of those matching only some of them
+        int resultLimit = (int) Math.min((long) (page + 1) * itemsPerPage, Integer.MAX_VALUE);
+        PriorityQueue<Result> topResults = new PriorityQueue<>();
+        for (int i = 0; i < touchedCount; i++) {
+            int documentId = touched[i];
+            String path = paths[documentId];
+            float score = scores[documentId] * matchedTerms[documentId] / queryTerms.size();
+            if (path == null || (topResults.size() == resultLimit && score < topResults.peek().score))
+                continue;
+
+            Result result = new Result(path, score);
+            if (topResults.size() < resultLimit) {
+                topResults.add(result);
+            } else if (result.compareTo(topResults.peek()) > 0) {
+                topResults.poll();
+                topResults.add(result);
+            }
+        }
+
+        List<Result> ranked = new ArrayList<>(topResults);
+        ranked.sort(Collections.reverseOrder());
+
+        List<String> results = new ArrayList<>();
+        for (int i = page * itemsPerPage; i < ranked.size(); i++)
+            results.add(ranked.get(i).path);
+
+        return results;
+    }
+
+    public int size() {
+        return documents.size();
+    }
+
+    /**
+     * @return - Indexed terms similar to the query term, with their similarity from 0 to 1
+     */
+    private Map<String, Float> matchTerms(String queryTerm) {
+        Map<String, Float> matches = new HashMap<>();
+        if (postings.containsKey(queryTerm))
+            matches.put(queryTerm, 1f);
+
+        Set<String> queryGrams = trigrams(queryTerm);
+        Map<String, Integer> sharedGrams = new HashMap<>();
+        for (String gram : queryGrams) {
+            String[] terms = grams.get(gram);
+            if (terms != null) {
+                for (String term : terms)
+                    sharedGrams.merge(term, 1, Integer::sum);
+            }
+        }
+
+        sharedGrams.forEach((term, shared) -> {
+            if (term.equals(queryTerm))
+                return;
+
+            // Dice coefficient of the trigram sets, which still matches short words with a swapped or wrong letter
+            float similarity = term.startsWith(queryTerm) ? PREFIX_SIMILARITY
+                    : 2f * shared / (queryGrams.size() + term.length());
+            if (similarity >= MIN_SIMILARITY)
+                matches.put(term, similarity);
+        });
+
+        return matches;
+    }
+
+    private void addGrams(String term) {
+        for (String gram : trigrams(term)) {
+            String[] terms = grams.get(gram);
+            if (terms == null) {
+                grams.put(gram, new String[]{term});
+            } else {
+                String[] updated = Arrays.copyOf(terms, terms.length + 1);
+                updated[terms.length] = term;
+                grams.put(gram, updated);
+            }
+        }
+    }
+
+    private void removeGrams(String term) {
+        for (String gram : trigrams(term)) {
+            String[] terms = grams.get(gram);
+            if (terms == null)
+                continue;
+
+            String[] updated = Arrays.stream(terms).filter(existing -> !existing.equals(term)).toArray(String[]::new);
+            if (updated.length == 0) {
+                grams.remove(gram);
+            } else {
+                grams.put(gram, updated);
+            }
+        }
+    }
+
+    private static void addTerms(Map<String, Float> termWeights, String text, float weight) {
+        for (String term : tokenize(text))
+            termWeights.merge(term, weight, Math::max);
+    }
+
+    static List<String> tokenize(String text) {
+        if (text == null)
+            return Collections.emptyList();
+
+        List<String> terms = new ArrayList<>();
+        for (String term : TERM_SEPARATOR.split(text.toLowerCase(Locale.ENGLISH))) {
+            if (term.length() >= MIN_TERM_LENGTH && !terms.contains(term))
+                terms.add(term);
+        }
+
+        return terms;
+    }
+
+    /**
+     * Terms are padded so their first and last letters count, which ranks prefixes and near misses above
+     * terms that only share letters in the middle. A padded term of length n has n trigrams.
+     */
+    private static Set<String> trigrams(String term) {
+        String padded = "^" + term + "$";
+        Set<String> trigrams = new HashSet<>();
+        for (int i = 0; i + 3 <= padded.length(); i++)
+            trigrams.add(padded.substring(i, i + 3));
+
+        return trigrams;
+    }
+
+    private static class Document {
+        private final String[] terms;
+        private final int fingerprint;
+
+        private Document(String[] terms, int fingerprint) {
+            this.terms = terms;
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    private static class Result implements Comparable<Result> {
+        private final String path;
+        private final float score;
+
+        private Result(String path, float score) {
+            this.path = path;
+            this.score = score;
+        }
+
+        /**
+         * Higher scores rank higher, then earlier paths
+         */
+        @Override
+        public int compareTo(Result other) {
+            int comparison = Float.compare(score, other.score);
+            return comparison != 0 ? comparison : other.path.compareTo(path);
+        }
+    }
+
+    /**
+     * Appends write past the end of the arrays a reader can see and publish a new instance with the larger size,
+     * so the arrays are shared until they need to grow. Removals copy.
+     */
+    private static class Postings {
+        private final int[] documentIds;
+        private final float[] weights;
+        private final int size;
+
+        private Postings(int documentId, float weight) {
+            this(new int[]{documentId}, new float[]{weight}, 1);
+        }
+
+        private Postings(int[] documentIds, float[] weights, int size) {
+            this.documentIds = documentIds;
+            this.weights = weights;
+            this.size = size;
+        }
+
+        private Postings with(int documentId, float weight) {
+            int[] updatedIds = documentIds;
+            float[] updatedWeights = weights;
+            if (size == documentIds.length) {
+                updatedIds = Arrays.copyOf(documentIds, size * 2);
+                updatedWeights = Arrays.copyOf(weights, size * 2);
+            }
+
+            updatedIds[size] = documentId;
+            updatedWeights[size] = weight;
+            return new Postings(updatedIds, updatedWeights, size + 1);
+        }
+
+        private Postings without(int documentId) {
+            int[] updatedIds = new int[Math.max(1, size)];
+            float[] updatedWeights = new float[updatedIds.length];
+            int updatedSize = 0;
+            for (int i = 0; i < size; i++) {
+                if (documentIds[i] != documentId) {
+                    updatedIds[updatedSize] = documentIds[i];
+                    updatedWeights[updatedSize++] = weights[i];
+                }
+            }
+
+            return new Postings(updatedIds, updatedWeights, updatedSize);
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package com.github.rahmnathan.localmovie.service.control;
+
+import com.github.rahmnathan.omdb.boundary.OmdbMovieProvider;
+import com.github.rahmnathan.omdb.data.Movie;
+import com.github.rahmnathan.omdb.exception.MovieProviderException;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.common.util.concurrent.RateLimiter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.apache.camel.ExchangeTimedOutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+
+import javax.annotation.ManagedBean;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs movie provider lookups on a dedicated bounded pool rather than on whichever thread missed the cache.
+ * Concurrent lookups of the same title share one call, and calls are held to a token bucket rate limit.
+ * After repeated transport failures the circuit opens and lookups fail immediately, as do lookups of a title
+ * that failed recently, so an outage doesn't leave every request waiting on a timeout.
+ */
+@ManagedBean
+public class ThrottledMovieProvider {
+    private static final Timer MOVIE_PROVIDER_TIMER = Metrics.timer("localmovies.omdb.timer");
+    private static final Timer WAIT_TIMER = Metrics.timer("localmovies.omdb.wait.timer");
+    private static final Counter COALESCED_COUNTER = Metrics.counter("localmovies.omdb.coalesced.counter");
+    private static final Counter REJECTED_COUNTER = Metrics.counter("localmovies.omdb.rejected.counter");
+    private static final Counter SHORT_CIRCUIT_COUNTER = Metrics.counter("localmovies.omdb.short.circuit.counter");
+    private final Logger logger = LoggerFactory.getLogger(ThrottledMovieProvider.class.getName());
+    private final ConcurrentMap<String, CompletableFuture<Movie>> inFlight = new ConcurrentHashMap<>();
+    private final OmdbMovieProvider movieProvider;
+    private final ThreadPoolExecutor executor;
+    private final RateLimiter rateLimiter;
+    private final Cache<String, Boolean> failedTitles;
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicLong openUntil = new AtomicLong();
+    private final int failureThreshold;
+    private final long openMillis;
+
+    public ThrottledMovieProvider(OmdbMovieProvider movieProvider,
+                                  @Value("${omdb.threads:4}") int threads,
+                                  @Value("${omdb.queue.capacity:1000}") int queueCapacity,
+                                  @Value("${omdb.rate.limit:10}") double permitsPerSecond,
+                                  @Value("${omdb.negative.ttl.minutes:5}") long negativeTtlMinutes,
+                                  @Value("${omdb.circuit.failure.threshold:5}") int failureThreshold,
+                                  @Value("${omdb.circuit.open.seconds:60}") long openSeconds) {
+        logger.info("Movie provider threads: {} queue capacity: {} rate limit: {}/s", threads, queueCapacity, permitsPerSecond);
+        this.movieProvider = movieProvider;
+        this.failureThreshold = failureThreshold;
+        this.openMillis = TimeUnit.SECONDS.toMillis(openSeconds);
+        this.failedTitles = Caffeine.newBuilder()
+                .expireAfterWrite(negativeTtlMinutes, TimeUnit.MINUTES)
+                .maximumSize(10000)
+                .build();
+        this.rateLimiter = permitsPerSecond > 0 ? RateLimiter.create(permitsPerSecond) : null;
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(queueCapacity));
+        Metrics.gauge("localmovies.omdb.queue.size", executor, pool -> pool.getQueue().size());
+        Metrics.gauge("localmovies.omdb.inflight", inFlight, ConcurrentMap::size);
+        Metrics.gauge("localmovies.omdb.circuit.open", this, provider -> provider.isOpen() ? 1 : 0);
+    }
+
+    /**
+     * @param title - Title to look up
+     * @return - Lookup result, shared with any lookup of the same title that is already queued or running
+     */
+    public CompletableFuture<Movie> getMovieAsync(String title) {
+        if (isOpen() || failedTitles.getIfPresent(title) != null)
+            return unavailable(title);
+
+        CompletableFuture<Movie> existing = inFlight.get(title);
+        if (existing != null) {
+            COALESCED_COUNTER.increment();
+            return existing;
+        }
+
+        CompletableFuture<Movie> result = new CompletableFuture<>();
+        existing = inFlight.putIfAbsent(title, result);
+        if (existing != null) {
+            COALESCED_COUNTER.increment();
+            return existing;
+        }
+
+        long queuedTime = System.nanoTime();
+        try {
+            executor.execute(() -> {
+                try {
+                    // The circuit may have opened while this lookup was queued
+                    if (!allowRequest()) {
+                        SHORT_CIRCUIT_COUNTER.increment();
+                        result.completeExceptionally(new MovieProviderUnavailableException("Movie provider circuit open - " + title));
+                        return;
+                    }
+
+                    if (rateLimiter != null)
+                        rateLimiter.acquire();
+
+                    WAIT_TIMER.record(System.nanoTime() - queuedTime, TimeUnit.NANOSECONDS);
+                    Movie movie = MOVIE_PROVIDER_TIMER.recordCallable(() -> movieProvider.getMovie(title));
+                    consecutiveFailures.set(0);
+                    result.complete(movie);
+                } catch (Exception e) {
+                    recordFailure(title, e);
+                    result.completeExceptionally(e);
+                } finally {
+                    inFlight.remove(title, result);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            REJECTED_COUNTER.increment();
+            inFlight.remove(title, result);
+            result.completeExceptionally(e);
+        }
+
+        return result;
+    }
+
+    private CompletableFuture<Movie> unavailable(String title) {
+        SHORT_CIRCUIT_COUNTER.increment();
+        CompletableFuture<Movie> result = new CompletableFuture<>();
+        result.completeExceptionally(new MovieProviderUnavailableException("Movie provider unavailable - " + title));
+        return result;
+    }
+
+    /**
+     * @return - Whether lookups are being made, which they aren't while the circuit is open
+     */
+    public boolean isAvailable() {
+        return !isOpen();
+    }
+
+    private boolean isOpen() {
+        return consecutiveFailures.get() >= failureThreshold && System.currentTimeMillis() < openUntil.get();
+    }
+
+    /**
+     * Once the open period is over a single trial call is let through, which closes the circuit if it succeeds
+     * and leaves it open for another period if it doesn't
+     */
+    private boolean allowRequest() {
+        if (consecutiveFailures.get() < failureThreshold)
+            return true;
+
+        long now = System.currentTimeMillis();
+        long until = openUntil.get();
+        return now >= until && openUntil.compareAndSet(until, now + openMillis);
+    }
+
+    /**
+     * A title the provider can't find is only remembered as failed, so a directory of misnamed files doesn't
+     * open the circuit for everyone
+     */
+    private void recordFailure(String title, Exception exception) {
+        failedTitles.put(title, Boolean.TRUE);
+        if (!isProviderFailure(exception))
+            return;
+
+        if (consecutiveFailures.incrementAndGet() == failureThreshold) {
+            logger.warn("Movie provider circuit opened for {} ms after {} consecutive failures", openMillis, failureThreshold);
+            openUntil.set(System.currentTimeMillis() + openMillis);
+        }
+    }
+
+    /**
+     * @return - Whether the provider couldn't be reached, timed out or answered with a server error
+     */
+    static boolean isProviderFailure(Throwable exception) {
+        for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+            if (cause instanceof IOException || cause instanceof TimeoutException || cause instanceof ExchangeTimedOutException)
+                return true;
+            if (statusCode(cause) >= 500)
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * HTTP client exceptions, like Camel's HttpOperationFailedException, carry the response status as getStatusCode
+     */
+    private static int statusCode(Throwable exception) {
+        try {
+            Object status = exception.getClass().getMethod("getStatusCode").invoke(exception);
+            return status instanceof Integer ? (Integer) status : 0;
+        } catch (ReflectiveOperationException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Blocking form of {@link #getMovieAsync(String)}
+     * @param title - Title to look up
+     * @return - Movie from the provider
+     */
+    public Movie getMovie(String title) throws MovieProviderException {
+        try {
+            return getMovieAsync(title).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof MovieProviderException)
+                throw (MovieProviderException) e.getCause();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+
+            throw e;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
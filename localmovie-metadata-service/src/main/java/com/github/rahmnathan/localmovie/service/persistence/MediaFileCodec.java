@@ -0,0 +1,144 @@
+package com.github.rahmnathan.localmovie.service.persistence;
+
+import com.github.rahmnathan.localmovie.domain.MediaFile;
+import com.github.rahmnathan.omdb.data.Movie;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+/**
+ * Compact binary form of a cached MediaFile. Strings are written as a length, -1 for null, followed by UTF-8 bytes.
+ */
+class MediaFileCodec {
+    static final byte PUT = 1;
+    static final byte DELETE = 2;
+
+    private MediaFileCodec(){
+        // No need to instantiate this
+    }
+
+    static byte[] encodePut(MediaFile mediaFile) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream output = new DataOutputStream(bytes);
+            output.writeByte(PUT);
+            writeString(output, mediaFile.getPath());
+            writeString(output, mediaFile.getFileName());
+            output.writeLong(mediaFile.getCreated());
+            output.writeInt(mediaFile.getViews());
+            output.writeLong(mediaFile.getVersion());
+            writeString(output, mediaFile.getPosterHash());
+
+            Movie movie = mediaFile.getMovie();
+            output.writeBoolean(movie != null);
+            if (movie != null) {
+                writeString(output, movie.getTitle());
+                writeString(output, movie.getImage());
+                writeString(output, movie.getImdbRating());
+                writeString(output, movie.getMetaRating());
+                writeString(output, movie.getReleaseYear());
+                writeString(output, movie.getGenre());
+                writeString(output, movie.getActors());
+                writeString(output, movie.getPlot());
+            }
+
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static byte[] encodeDelete(String path) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream output = new DataOutputStream(bytes);
+            output.writeByte(DELETE);
+            writeString(output, path);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static byte readType(ByteBuffer record) {
+        return record.get(0);
+    }
+
+    static String readPath(ByteBuffer record) {
+        ByteBuffer input = record.duplicate();
+        input.position(1);
+        return readString(input);
+    }
+
+    /**
+     * @return - Whether the record holds the same version and poster of its MediaFile, without decoding the rest
+     */
+    static boolean isCurrent(ByteBuffer record, long version, String posterHash) {
+        ByteBuffer input = record.duplicate();
+        input.position(1);
+        skipString(input);
+        skipString(input);
+        input.position(input.position() + Long.BYTES + Integer.BYTES);
+        return input.getLong() == version && Objects.equals(readString(input), posterHash);
+    }
+
+    static MediaFile decode(ByteBuffer record) {
+        ByteBuffer input = record.duplicate();
+        input.position(1);
+
+        MediaFile.Builder builder = MediaFile.Builder.newInstance()
+                .setPath(readString(input))
+                .setFileName(readString(input))
+                .setCreated(input.getLong())
+                .setViews(input.getInt())
+                .setVersion(input.getLong())
+                .setPosterHash(readString(input));
+
+        if (input.get() != 0) {
+            builder.setMovie(Movie.Builder.newInstance()
+                    .setTitle(readString(input))
+                    .setImage(readString(input))
+                    .setIMDBRating(readString(input))
+                    .setMetaRating(readString(input))
+                    .setReleaseYear(readString(input))
+                    .setGenre(readString(input))
+                    .setActors(readString(input))
+                    .setPlot(readString(input))
+                    .build());
+        }
+
+        return builder.build();
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        if (value == null) {
+            output.writeInt(-1);
+            return;
+        }
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static void skipString(ByteBuffer input) {
+        int length = input.getInt();
+        if (length > 0)
+            input.position(input.position() + length);
+    }
+
+    private static String readString(ByteBuffer input) {
+        int length = input.getInt();
+        if (length < 0)
+            return null;
+
+        byte[] bytes = new byte[length];
+        input.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
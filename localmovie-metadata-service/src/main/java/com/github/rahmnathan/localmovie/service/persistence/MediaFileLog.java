@@ -0,0 +1,310 @@
+package com.github.rahmnathan.localmovie.service.persistence;
+
+import com.github.rahmnathan.localmovie.domain.MediaFile;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+
+import javax.annotation.ManagedBean;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Local, persistent tier behind the in-memory metadata cache. MediaFiles are appended to a memory-mapped log
+ * and found through an in-memory index of path to record offset, which is rebuilt by scanning the log on
+ * startup. Each record is its length, a CRC32 of its payload and the payload, so a torn write at the tail is
+ * detected and discarded. Puts of a MediaFile already logged at the same version and poster are skipped, so
+ * background refreshes don't rewrite unchanged entries. The log is compacted on startup, and at runtime instead of
+ * growing, once most of it is superseded records. Reads hold a read lock on the mapping, so a superseded mapping
+ * is released as soon as it's replaced rather than whenever it's garbage collected.
+ */
+@ManagedBean
+public class MediaFileLog {
+    private static final Counter HIT_COUNTER = Metrics.counter("localmovies.metadata.log.hit.counter");
+    private static final Counter MISS_COUNTER = Metrics.counter("localmovies.metadata.log.miss.counter");
+    private static final Counter UNCHANGED_COUNTER = Metrics.counter("localmovies.metadata.log.unchanged.counter");
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int INITIAL_CAPACITY = 4 * 1024 * 1024;
+    private static final long MIN_COMPACTION_SIZE = 1024 * 1024;
+    private final Logger logger = LoggerFactory.getLogger(MediaFileLog.class.getName());
+    private final Map<String, Long> index = new ConcurrentHashMap<>();
+    private final ReadWriteLock mappingLock = new ReentrantReadWriteLock();
+    private final boolean enabled;
+    private final Path logFile;
+    private volatile MappedByteBuffer mappedLog;
+    private FileChannel channel;
+    private long writePosition;
+    private long liveBytes;
+
+    public MediaFileLog(@Value("${storage.path:/opt/localmovies/storage}") String storagePath,
+                        @Value("${cache.persistent.enabled:true}") boolean enabled) {
+        this.logFile = Paths.get(storagePath, "metadata", "mediafiles.log");
+        this.enabled = enabled && open();
+        Metrics.gauge("localmovies.metadata.log.entries", index, Map::size);
+    }
+
+    public Optional<MediaFile> get(String path) {
+        if (!enabled) {
+            MISS_COUNTER.increment();
+            return Optional.empty();
+        }
+
+        mappingLock.readLock().lock();
+        try {
+            Long offset = index.get(path);
+            ByteBuffer record = offset == null ? null : readRecord(mappedLog, offset);
+            if (record == null || MediaFileCodec.readType(record) != MediaFileCodec.PUT) {
+                MISS_COUNTER.increment();
+                return Optional.empty();
+            }
+
+            HIT_COUNTER.increment();
+            return Optional.of(MediaFileCodec.decode(record));
+        } finally {
+            mappingLock.readLock().unlock();
+        }
+    }
+
+    public synchronized void put(MediaFile mediaFile) {
+        if (!enabled || mediaFile.getPath() == null)
+            return;
+
+        if (isLogged(mediaFile)) {
+            UNCHANGED_COUNTER.increment();
+            return;
+        }
+
+        append(mediaFile.getPath(), MediaFileCodec.encodePut(mediaFile));
+    }
+
+    public synchronized void remove(String path) {
+        if (enabled && index.containsKey(path))
+            append(path, MediaFileCodec.encodeDelete(path));
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Only called by writers, which are the only ones that replace the mapping, so it's read without the lock
+     */
+    private boolean isLogged(MediaFile mediaFile) {
+        Long offset = index.get(mediaFile.getPath());
+        ByteBuffer record = offset == null ? null : readRecord(mappedLog, offset);
+        return record != null && MediaFileCodec.readType(record) == MediaFileCodec.PUT
+                && MediaFileCodec.isCurrent(record, mediaFile.getVersion(), mediaFile.getPosterHash());
+    }
+
+    private void append(String path, byte[] payload) {
+        try {
+            int recordSize = RECORD_HEADER_SIZE + payload.length;
+            ensureCapacity(recordSize);
+
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+
+            MappedByteBuffer log = mappedLog;
+            int position = (int) writePosition;
+            log.putInt(position + 4, (int) crc.getValue());
+            ByteBuffer writer = log.duplicate();
+            writer.position(position + RECORD_HEADER_SIZE);
+            writer.put(payload);
+            // The length goes in last so a reader never sees a record before its payload is written
+            log.putInt(position, payload.length);
+
+            Long previous = payload[0] == MediaFileCodec.PUT ? index.put(path, writePosition) : index.remove(path);
+            if (previous != null)
+                liveBytes -= recordSize(log, previous);
+            if (payload[0] == MediaFileCodec.PUT)
+                liveBytes += recordSize;
+
+            writePosition += recordSize;
+        } catch (IOException e) {
+            logger.error("Failure appending to media file log", e);
+        }
+    }
+
+    private boolean open() {
+        try {
+            Files.createDirectories(logFile.getParent());
+            channel = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            mappedLog = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), INITIAL_CAPACITY));
+            scan();
+            logger.info("Loaded {} media files from {} in log of {} bytes", index.size(), logFile, writePosition);
+
+            if (writePosition > MIN_COMPACTION_SIZE && liveBytes * 2 < writePosition)
+                compact();
+
+            return true;
+        } catch (IOException e) {
+            logger.error("Failure opening media file log, persistent cache disabled", e);
+            return false;
+        }
+    }
+
+    private void scan() {
+        MappedByteBuffer log = mappedLog;
+        long position = 0;
+        ByteBuffer record;
+        while ((record = readRecord(log, position)) != null) {
+            String path = MediaFileCodec.readPath(record);
+            int recordSize = RECORD_HEADER_SIZE + record.remaining();
+            Long previous = MediaFileCodec.readType(record) == MediaFileCodec.PUT ? index.put(path, position) : index.remove(path);
+            if (previous != null)
+                liveBytes -= recordSize(log, previous);
+            if (MediaFileCodec.readType(record) == MediaFileCodec.PUT)
+                liveBytes += recordSize;
+
+            position += recordSize;
+        }
+
+        writePosition = position;
+        // Clear anything after the last valid record, such as a torn write, so it can't be mistaken for a record later
+        for (long i = position; i < Math.min(log.capacity(), position + RECORD_HEADER_SIZE); i++)
+            log.put((int) i, (byte) 0);
+    }
+
+    private void compact() throws IOException {
+        logger.info("Compacting media file log - live bytes: {} log size: {}", liveBytes, writePosition);
+        Path compactedFile = logFile.resolveSibling(logFile.getFileName() + ".compact");
+        MappedByteBuffer log = mappedLog;
+        try (FileChannel compacted = FileChannel.open(compactedFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (Long offset : index.values()) {
+                ByteBuffer record = log.duplicate();
+                record.position(offset.intValue());
+                record.limit(offset.intValue() + recordSize(log, offset));
+                while (record.hasRemaining())
+                    compacted.write(record);
+            }
+            compacted.force(true);
+        }
+
+        mappingLock.writeLock().lock();
+        try {
+            channel.close();
+            Files.move(compactedFile, logFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            index.clear();
+            liveBytes = 0;
+            channel = FileChannel.open(logFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            mappedLog = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size() * 2, INITIAL_CAPACITY));
+            unmap(log);
+            scan();
+        } finally {
+            mappingLock.writeLock().unlock();
+        }
+    }
+
+    private void ensureCapacity(int recordSize) throws IOException {
+        long required = writePosition + recordSize + RECORD_HEADER_SIZE;
+        if (required <= mappedLog.capacity())
+            return;
+
+        // Rather than grow a log that's mostly superseded records, rewrite it with only the live ones
+        if (liveBytes * 2 < writePosition) {
+            compact();
+            required = writePosition + recordSize + RECORD_HEADER_SIZE;
+            if (required <= mappedLog.capacity())
+                return;
+        }
+
+        long capacity = Math.max(required, (long) mappedLog.capacity() * 2);
+        if (capacity > Integer.MAX_VALUE)
+            throw new IOException("Media file log is full");
+
+        MappedByteBuffer grown = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        mappingLock.writeLock().lock();
+        try {
+            MappedByteBuffer log = mappedLog;
+            mappedLog = grown;
+            unmap(log);
+        } finally {
+            mappingLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Releases a mapping straight away. On a JVM that doesn't expose either cleaner it's left to the garbage
+     * collector. Callers hold the write lock, so no read can still be using it.
+     */
+    private void unmap(MappedByteBuffer log) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            try {
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), log);
+            } catch (NoSuchMethodException e) {
+                // Java 8, where mapped buffers expose their cleaner directly
+                Method cleanerMethod = log.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(log);
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.debug("Leaving superseded mapping to the garbage collector", e);
+        }
+    }
+
+    /**
+     * @return - The record's payload, or null if there is no complete, valid record at the position
+     */
+    private ByteBuffer readRecord(ByteBuffer log, long position) {
+        try {
+            if (position + RECORD_HEADER_SIZE > log.capacity())
+                return null;
+
+            int length = log.getInt((int) position);
+            if (length <= 0 || position + RECORD_HEADER_SIZE + length > log.capacity())
+                return null;
+
+            ByteBuffer payload = log.duplicate();
+            payload.position((int) position + RECORD_HEADER_SIZE);
+            payload.limit((int) position + RECORD_HEADER_SIZE + length);
+            payload = payload.slice();
+
+            CRC32 crc = new CRC32();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != log.getInt((int) position + 4))
+                return null;
+
+            return payload;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    private int recordSize(ByteBuffer log, long position) {
+        return RECORD_HEADER_SIZE + log.getInt((int) position);
+    }
+
+    @PreDestroy
+    public synchronized void close() {
+        if (!enabled)
+            return;
+
+        try {
+            mappedLog.force();
+            channel.close();
+        } catch (IOException e) {
+            logger.error("Failure closing media file log", e);
+        }
+    }
+}
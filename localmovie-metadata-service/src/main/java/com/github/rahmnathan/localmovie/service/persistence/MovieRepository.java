@@ -1,10 +1,40 @@
 package com.github.rahmnathan.localmovie.service.persistence;
 
 import com.github.rahmnathan.localmovie.domain.MediaFile;
-import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.PagingAndSortingRepository;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.util.List;
+
 @Repository
-public interface MovieRepository extends CrudRepository<MediaFile, String> {
+public interface MovieRepository extends PagingAndSortingRepository<MediaFile, String> {
+
+    /**
+     * @param path - Path to continue after, or an empty string to start from the beginning
+     * @param pageable - Number of rows to load
+     * @return - MediaFiles after the path, ordered by path
+     */
+    @Query("select m from movies m where m.path > :path order by m.path")
+    List<MediaFile> findAfter(@Param("path") String path, Pageable pageable);
 
+    /**
+     * Selects the same rows as Movie.hasMissingValues, so fields holding the provider's "null" and "N/A" placeholders
+     * count as missing too
+     * @param path - Path to continue after, or an empty string to start from the beginning
+     * @param pageable - Number of rows to load
+     * @return - MediaFiles after the path with any movie field missing, ordered by path
+     */
+    @Query("select m from movies m where m.path > :path and (" +
+            "m.movie.title is null or m.movie.title in ('null', 'N/A') or " +
+            "m.movie.image is null or m.movie.image in ('null', 'N/A') or " +
+            "m.movie.imdbRating is null or m.movie.imdbRating in ('null', 'N/A') or " +
+            "m.movie.metaRating is null or m.movie.metaRating in ('null', 'N/A') or " +
+            "m.movie.releaseYear is null or m.movie.releaseYear in ('null', 'N/A') or " +
+            "m.movie.genre is null or m.movie.genre in ('null', 'N/A') or " +
+            "m.movie.actors is null or m.movie.actors in ('null', 'N/A') or " +
+            "m.movie.plot is null or m.movie.plot in ('null', 'N/A')) order by m.path")
+    List<MediaFile> findMissingValuesAfter(@Param("path") String path, Pageable pageable);
 }
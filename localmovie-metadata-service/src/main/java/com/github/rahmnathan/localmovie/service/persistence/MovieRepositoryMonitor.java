@@ -1,44 +1,168 @@
 package com.github.rahmnathan.localmovie.service.persistence;
 
-import com.github.rahmnathan.omdb.boundary.OmdbMovieProvider;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.rahmnathan.localmovie.domain.MediaFile;
+import com.github.rahmnathan.localmovie.service.control.ThrottledMovieProvider;
 import com.github.rahmnathan.omdb.data.Movie;
-import com.github.rahmnathan.omdb.exception.MovieProviderException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.scheduling.annotation.Scheduled;
 
 import javax.annotation.ManagedBean;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Fills in missing movie fields from the movie provider. Only rows with a missing field are read, a batch at a time
+ * in path order, and each batch is looked up in parallel under the provider's rate limit and saved together. The
+ * last path of each saved batch is checkpointed under storage.path, so a run cut short by a restart picks up where
+ * it stopped instead of starting over. A run stops early, without moving the checkpoint, if a batch can't be saved
+ * or the provider's circuit opens. Rows whose lookups keep failing are skipped for a while, so one unresolvable
+ * title doesn't hold the checkpoint in place.
+ */
 @ManagedBean
 public class MovieRepositoryMonitor {
+    private static final Counter SCANNED_COUNTER = Metrics.counter("localmovies.repair.scanned");
+    private static final Counter FIXED_COUNTER = Metrics.counter("localmovies.repair.fixed");
+    private static final Counter FAILED_COUNTER = Metrics.counter("localmovies.repair.failed");
+    private static final Counter SKIPPED_COUNTER = Metrics.counter("localmovies.repair.skipped");
+    private static final String START = "";
+    private static final int MAX_ATTEMPTS = 3;
     private final Logger logger = LoggerFactory.getLogger(MovieRepositoryMonitor.class.getName());
     private final MovieRepository movieRepository;
-    private final OmdbMovieProvider movieProvider;
+    private final ThrottledMovieProvider movieProvider;
+    private final Cache<String, Integer> failedAttempts = Caffeine.newBuilder()
+            .expireAfterWrite(30, TimeUnit.DAYS)
+            .maximumSize(100000)
+            .build();
+    private final Path checkpointFile;
+    private final int batchSize;
 
-    public MovieRepositoryMonitor(MovieRepository movieRepository, OmdbMovieProvider movieProvider) {
+    public MovieRepositoryMonitor(MovieRepository movieRepository, ThrottledMovieProvider movieProvider,
+                                  @Value("${storage.path:/opt/localmovies/storage}") String storagePath,
+                                  @Value("${repair.batch.size:50}") int batchSize) {
         this.movieRepository = movieRepository;
         this.movieProvider = movieProvider;
+        this.checkpointFile = Paths.get(storagePath, "metadata", "repair.checkpoint");
+        this.batchSize = batchSize;
     }
 
     @Scheduled(fixedRate = 86400000)
     public void checkForEmptyValues(){
-        logger.info("Checking for null MovieInfo fields in database");
+        String lastPath = readCheckpoint();
+        logger.info("Checking for null MovieInfo fields in database, starting after: '{}'", lastPath);
 
-        movieRepository.findAll().forEach(mediaFile -> {
+        List<MediaFile> batch;
+        do {
+            batch = movieRepository.findMissingValuesAfter(lastPath, PageRequest.of(0, batchSize));
+            if (batch.isEmpty())
+                break;
+
+            if (!repair(batch)) {
+                logger.warn("Stopping metadata repair, the next run resumes after: '{}'", lastPath);
+                return;
+            }
+
+            lastPath = batch.get(batch.size() - 1).getPath();
+            writeCheckpoint(lastPath);
+        } while (batch.size() == batchSize);
+
+        logger.info("Finished checking for null MovieInfo fields in database");
+        writeCheckpoint(START);
+    }
+
+    /**
+     * A batch is done with once its repairs are saved. It isn't if the save failed, or if the provider's circuit
+     * opened, since the rest of the batch would then have failed without a real lookup.
+     * @return - Whether the checkpoint can move past the batch
+     */
+    private boolean repair(List<MediaFile> batch) {
+        List<MediaFile> candidates = new ArrayList<>();
+        List<CompletableFuture<Movie>> lookups = new ArrayList<>();
+        for (MediaFile mediaFile : batch) {
+            SCANNED_COUNTER.increment();
             Movie existingMovie = mediaFile.getMovie();
-            if(existingMovie.hasMissingValues()){
-                logger.info("Detected missing fields: {}", existingMovie.toString());
-
-                try {
-                    Movie newMovie = movieProvider.getMovie(existingMovie.getTitle());
-                    Movie mergedMovie = mergeMovies(newMovie, existingMovie);
-                    mediaFile.setMovie(mergedMovie);
-                    movieRepository.save(mediaFile);
-                } catch (MovieProviderException e){
-                    logger.error("Failed to get movie from provider", e);
-                }
+            if (existingMovie == null || existingMovie.getTitle() == null || !existingMovie.hasMissingValues())
+                continue;
+
+            Integer attempts = failedAttempts.getIfPresent(mediaFile.getPath());
+            if (attempts != null && attempts >= MAX_ATTEMPTS) {
+                SKIPPED_COUNTER.increment();
+                continue;
+            }
+
+            logger.info("Detected missing fields: {}", existingMovie.toString());
+            candidates.add(mediaFile);
+            lookups.add(movieProvider.getMovieAsync(existingMovie.getTitle()));
+        }
+
+        List<MediaFile> fixed = new ArrayList<>();
+        List<String> failed = new ArrayList<>();
+        for (int i = 0; i < candidates.size(); i++) {
+            MediaFile mediaFile = candidates.get(i);
+            try {
+                mediaFile.setMovie(mergeMovies(lookups.get(i).join(), mediaFile.getMovie()));
+                fixed.add(mediaFile);
+            } catch (CompletionException | CancellationException e) {
+                FAILED_COUNTER.increment();
+                failed.add(mediaFile.getPath());
+                logger.error("Failed to get movie from provider - " + mediaFile.getPath(), e.getCause() != null ? e.getCause() : e);
             }
-        });
+        }
+
+        boolean available = movieProvider.isAvailable();
+        // Failures during an outage say nothing about the row, so they don't count towards giving up on it
+        if (available)
+            failed.forEach(path -> failedAttempts.asMap().merge(path, 1, Integer::sum));
+
+        if (!fixed.isEmpty()) {
+            try {
+                movieRepository.saveAll(fixed);
+                FIXED_COUNTER.increment(fixed.size());
+                fixed.forEach(mediaFile -> failedAttempts.invalidate(mediaFile.getPath()));
+            } catch (RuntimeException e) {
+                FAILED_COUNTER.increment(fixed.size());
+                logger.error("Failed to save repaired batch", e);
+                return false;
+            }
+        }
+
+        return available;
+    }
+
+    private String readCheckpoint() {
+        try {
+            return Files.exists(checkpointFile) ? new String(Files.readAllBytes(checkpointFile), StandardCharsets.UTF_8) : START;
+        } catch (IOException e) {
+            logger.warn("Failed to read repair checkpoint, starting from the beginning", e);
+            return START;
+        }
+    }
+
+    private void writeCheckpoint(String path) {
+        try {
+            Files.createDirectories(checkpointFile.getParent());
+            Path tempFile = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+            Files.write(tempFile, path.getBytes(StandardCharsets.UTF_8));
+            Files.move(tempFile, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("Failed to write repair checkpoint", e);
+        }
     }
 
     private Movie mergeMovies(Movie newMovie, Movie existingMovie){
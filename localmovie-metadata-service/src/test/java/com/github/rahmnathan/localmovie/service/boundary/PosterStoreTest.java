@@ -0,0 +1,59 @@
+package com.github.rahmnathan.localmovie.service.boundary;
+
+import com.github.rahmnathan.localmovie.domain.PosterSize;
+import com.github.rahmnathan.localmovie.service.control.PosterResizer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Optional;
+
+public class PosterStoreTest {
+    private PosterStore posterStore;
+
+    @BeforeEach
+    public void initialize() throws IOException {
+        posterStore = new PosterStore(Files.createTempDirectory("posters").toString(), new PosterResizer(1, 0.8f));
+    }
+
+    @Test
+    public void storeTest() throws IOException {
+        byte[] image = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0, 0, 16};
+        String hash = posterStore.store(Base64.getEncoder().encodeToString(image));
+
+        Assertions.assertEquals(hash, posterStore.store(Base64.getEncoder().encodeToString(image)));
+        Path poster = posterStore.getPoster(hash).orElseThrow(AssertionError::new);
+        Assertions.assertArrayEquals(image, Files.readAllBytes(poster));
+    }
+
+    @Test
+    public void resizeTest() throws IOException, InterruptedException {
+        ByteArrayOutputStream image = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(1000, 1500, BufferedImage.TYPE_INT_RGB), "jpeg", image);
+        String hash = posterStore.store(Base64.getEncoder().encodeToString(image.toByteArray()));
+
+        Optional<Path> grid = posterStore.getPoster(hash, PosterSize.GRID);
+        for (int i = 0; i < 100 && !grid.isPresent(); i++) {
+            Thread.sleep(50);
+            grid = posterStore.getPoster(hash, PosterSize.GRID);
+        }
+
+        BufferedImage resized = ImageIO.read(grid.orElseThrow(AssertionError::new).toFile());
+        Assertions.assertEquals(PosterSize.GRID.getWidth(), resized.getWidth());
+        Assertions.assertEquals(513, resized.getHeight());
+    }
+
+    @Test
+    public void invalidImageTest() {
+        Assertions.assertNull(posterStore.store(null));
+        Assertions.assertNull(posterStore.store("noImage"));
+        Assertions.assertFalse(posterStore.getPoster("../../etc/passwd").isPresent());
+    }
+}
@@ -0,0 +1,167 @@
+package com.github.rahmnathan.localmovie.service.control;
+
+import com.github.rahmnathan.localmovie.domain.MediaFile;
+import com.github.rahmnathan.localmovie.domain.MovieClient;
+import com.github.rahmnathan.localmovie.domain.MovieSearchCriteria;
+import com.github.rahmnathan.omdb.data.Movie;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.github.rahmnathan.localmovie.domain.MovieOrder.*;
+
+public class DirectoryIndexTest {
+    private List<MediaFile> mediaFileList;
+
+    @BeforeEach
+    public void initialize(){
+        this.mediaFileList = new ArrayList<>();
+        mediaFileList.add(buildMediaFile("Movies/Test.mkv", "myTitle", "4", "2001", 1, "Action, Comedy"));
+        mediaFileList.add(buildMediaFile("Movies/Test1.mkv", "myTitle", "5", "2005", 3, "Drama"));
+        mediaFileList.add(buildMediaFile("Movies/Test2.mkv", "myTitle", "N/A", "2003-2006", 2, "Comedy"));
+    }
+
+    @Test
+    public void sortTest(){
+        DirectoryIndex index = DirectoryIndex.build(mediaFileList);
+
+        Assertions.assertEquals(Arrays.asList("Movies/Test1.mkv", "Movies/Test.mkv", "Movies/Test2.mkv"), index.page(RATING, 0, 10));
+        Assertions.assertEquals(Arrays.asList("Movies/Test1.mkv", "Movies/Test2.mkv", "Movies/Test.mkv"), index.page(RELEASE_YEAR, 0, 10));
+        Assertions.assertEquals(Arrays.asList("Movies/Test1.mkv", "Movies/Test2.mkv", "Movies/Test.mkv"), index.page(MOST_VIEWS, 0, 10));
+        Assertions.assertEquals(Arrays.asList("Movies/Test.mkv", "Movies/Test1.mkv", "Movies/Test2.mkv"), index.page(null, 0, 10));
+    }
+
+    @Test
+    public void paginateTest(){
+        DirectoryIndex index = DirectoryIndex.build(mediaFileList);
+
+        Assertions.assertEquals(Arrays.asList("Movies/Test1.mkv"), index.page(RATING, 0, 1));
+        Assertions.assertEquals(Arrays.asList("Movies/Test2.mkv"), index.page(RATING, 2, 1));
+        Assertions.assertTrue(index.page(RATING, 3, 1).isEmpty());
+    }
+
+    @Test
+    public void filterTest(){
+        DirectoryIndex index = DirectoryIndex.build(mediaFileList);
+
+        DirectoryIndex.Filter years = filter(2002, 2005, null, null);
+        Assertions.assertEquals(Arrays.asList("Movies/Test1.mkv", "Movies/Test2.mkv"), index.page(RELEASE_YEAR, years, 0, 10));
+        Assertions.assertEquals(2, index.count(years));
+
+        DirectoryIndex.Filter rating = filter(null, null, 4.5f, null);
+        Assertions.assertEquals(Arrays.asList("Movies/Test1.mkv"), index.page(null, rating, 0, 10));
+
+        DirectoryIndex.Filter genres = filter(null, null, null, Collections.singleton("comedy"));
+        Assertions.assertEquals(Arrays.asList("Movies/Test2.mkv"), index.page(MOST_VIEWS, genres, 0, 1));
+        Assertions.assertEquals(Arrays.asList("Movies/Test.mkv"), index.page(MOST_VIEWS, genres, 1, 1));
+
+        DirectoryIndex.Filter unknownGenre = filter(null, null, null, Collections.singleton("Western"));
+        Assertions.assertEquals(0, index.count(unknownGenre));
+        Assertions.assertSame(DirectoryIndex.Filter.NONE, filter(null, null, null, Collections.emptySet()));
+    }
+
+    @Test
+    public void genreDictionaryTest(){
+        DirectoryIndex movies = DirectoryIndex.build(mediaFileList);
+        DirectoryIndex series = DirectoryIndex.build(Collections.singletonList(
+                buildMediaFile("Series/Show", "Show", "7", "2010", 0, "Western, Comedy")));
+
+        // Each directory numbers its own genres, so the same name can hold a different bit in each
+        DirectoryIndex.Filter comedy = filter(null, null, null, Collections.singleton("Comedy"));
+        Assertions.assertEquals(2, movies.count(comedy));
+        Assertions.assertEquals(1, series.count(comedy));
+        Assertions.assertEquals(0, movies.count(filter(null, null, null, Collections.singleton("Western"))));
+
+        List<MediaFile> manyGenres = new ArrayList<>();
+        for (int i = 0; i < 70; i++)
+            manyGenres.add(buildMediaFile("Movies/Test" + i + ".mkv", "myTitle", "5", "2000", 0, "Genre" + i));
+
+        // Past 64 genres the rest are matched by name
+        DirectoryIndex crowded = DirectoryIndex.build(manyGenres);
+        Assertions.assertEquals(Arrays.asList("Movies/Test3.mkv"), crowded.page(null, filter(null, null, null, Collections.singleton("genre3")), 0, 10));
+        Assertions.assertEquals(Arrays.asList("Movies/Test68.mkv"), crowded.page(null, filter(null, null, null, Collections.singleton("genre68")), 0, 10));
+        Assertions.assertEquals(2, crowded.count(filter(null, null, null, new HashSet<>(Arrays.asList("Genre1", "Genre69")))));
+
+        DirectoryIndex added = crowded.withAdded(buildMediaFile("Movies/Test70.mkv", "myTitle", "5", "2000", 0, "Genre70, Genre2"));
+        Assertions.assertEquals(2, added.count(filter(null, null, null, Collections.singleton("Genre2"))));
+        Assertions.assertEquals(1, added.count(filter(null, null, null, Collections.singleton("Genre70"))));
+    }
+
+    @Test
+    public void seasonsEpisodesTest(){
+        DirectoryIndex index = DirectoryIndex.build(Arrays.asList(
+                buildMediaFile("Series/Show/Season 10", "Season 10", null, null, 0, null),
+                buildMediaFile("Series/Show/Season 2", "Season 2", null, null, 0, null)));
+
+        Assertions.assertEquals(Arrays.asList("Series/Show/Season 2", "Series/Show/Season 10"), index.page(SEASONS_EPISODES, 0, 10));
+    }
+
+    @Test
+    public void addRemoveTest(){
+        DirectoryIndex index = DirectoryIndex.build(mediaFileList);
+        DirectoryIndex added = index.withAdded(buildMediaFile("Movies/Test3.mkv", "myTitle", "9", "1999", 0, null));
+
+        Assertions.assertEquals(3, index.size());
+        Assertions.assertEquals(4, added.size());
+        Assertions.assertEquals(Arrays.asList("Movies/Test3.mkv"), added.page(RATING, 0, 1));
+
+        DirectoryIndex replaced = added.withAdded(buildMediaFile("Movies/Test3.mkv", "myTitle", "1", "1999", 0, null));
+        Assertions.assertEquals(4, replaced.size());
+        Assertions.assertEquals(Arrays.asList("Movies/Test3.mkv"), replaced.page(RATING, 2, 1));
+
+        DirectoryIndex removed = replaced.withRemoved("Movies/Test1.mkv");
+        Assertions.assertEquals(3, removed.size());
+        Assertions.assertEquals(Arrays.asList("Movies/Test.mkv", "Movies/Test3.mkv", "Movies/Test2.mkv"), removed.page(RATING, 0, 10));
+        Assertions.assertSame(removed, removed.withRemoved("Movies/Missing.mkv"));
+    }
+
+    @Test
+    public void cursorTest(){
+        DirectoryIndex index = DirectoryIndex.build(mediaFileList);
+        DirectoryIndex.Page first = index.page(RATING, DirectoryIndex.Filter.NONE, 0, null, 1);
+        Assertions.assertEquals(Arrays.asList("Movies/Test1.mkv"), first.getPaths());
+
+        PageCursor cursor = PageCursor.decode(first.getNext().encode());
+        DirectoryIndex.Page second = index.page(RATING, DirectoryIndex.Filter.NONE, 0, cursor, 1);
+        Assertions.assertEquals(Arrays.asList("Movies/Test.mkv"), second.getPaths());
+
+        // A newer snapshot resumes after the cursor's sort key, so entries added above it don't repeat a page
+        DirectoryIndex added = index.withAdded(buildMediaFile("Movies/Test3.mkv", "myTitle", "9", "1999", 0, null));
+        Assertions.assertEquals(Arrays.asList("Movies/Test.mkv", "Movies/Test2.mkv"),
+                added.page(RATING, DirectoryIndex.Filter.NONE, 0, cursor, 10).getPaths());
+
+        DirectoryIndex.Page last = index.page(RATING, DirectoryIndex.Filter.NONE, 0, second.getNext(), 1);
+        Assertions.assertEquals(Arrays.asList("Movies/Test2.mkv"), last.getPaths());
+        Assertions.assertNull(last.getNext());
+
+        Assertions.assertThrows(IllegalArgumentException.class, () -> index.page(MOST_VIEWS, DirectoryIndex.Filter.NONE, 0, cursor, 1));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> PageCursor.decode("not-a-cursor"));
+    }
+
+    private DirectoryIndex.Filter filter(Integer yearFrom, Integer yearTo, Float minRating, Set<String> genres) {
+        return DirectoryIndex.Filter.of(new MovieSearchCriteria("Movies", 0, 10, MovieClient.ANDROID, null, yearFrom, yearTo, minRating, genres));
+    }
+
+    private MediaFile buildMediaFile(String path, String title, String rating, String year, int views, String genre) {
+        Movie movie = Movie.Builder.newInstance()
+                .setTitle(title)
+                .setGenre(genre)
+                .setIMDBRating(rating)
+                .setReleaseYear(year)
+                .build();
+
+        return MediaFile.Builder.newInstance()
+                .setFileName(path.substring(path.lastIndexOf('/') + 1))
+                .setPath(path)
+                .setViews(views)
+                .setMovie(movie)
+                .build();
+    }
+}
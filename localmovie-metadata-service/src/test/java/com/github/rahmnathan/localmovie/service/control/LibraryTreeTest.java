@@ -0,0 +1,117 @@
+package com.github.rahmnathan.localmovie.service.control;
+
+import com.github.rahmnathan.localmovie.domain.MediaPath;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+
+public class LibraryTreeTest {
+    private Path firstRoot;
+    private Path secondRoot;
+    private LibraryTree libraryTree;
+
+    @BeforeEach
+    public void initialize() throws IOException {
+        firstRoot = Files.createTempDirectory("first");
+        secondRoot = Files.createTempDirectory("second");
+        Files.createDirectories(firstRoot.resolve("Movies"));
+        Files.createFile(firstRoot.resolve("Movies/Heat.mp4"));
+        Files.createDirectories(secondRoot.resolve("Movies"));
+        Files.createFile(secondRoot.resolve("Movies/Alien.mp4"));
+        Files.createDirectories(secondRoot.resolve("Series/Show/Season 1"));
+        Files.createFile(secondRoot.resolve("Series/Show/Season 1/Episode 1.mp4"));
+
+        libraryTree = new LibraryTree(new String[]{firstRoot + "/", secondRoot + "/"});
+        libraryTree.rebuild();
+    }
+
+    @Test
+    public void buildTest() {
+        Assertions.assertEquals(new HashSet<>(Arrays.asList("Movies/Heat.mp4", "Movies/Alien.mp4")), libraryTree.list("Movies"));
+        Assertions.assertEquals(new HashSet<>(Arrays.asList("Movies", "Series")), libraryTree.list(""));
+        Assertions.assertEquals(1, libraryTree.count("Series/Show/Season 1"));
+        Assertions.assertTrue(libraryTree.exists("Series/Show/Season 1/Episode 1.mp4"));
+        Assertions.assertFalse(libraryTree.exists("Movies/Missing.mp4"));
+        Assertions.assertTrue(libraryTree.list("Missing").isEmpty());
+    }
+
+    @Test
+    public void resolveTest() throws IOException {
+        Files.createFile(secondRoot.resolve("Movies/Heat.mp4"));
+        libraryTree.add("Movies/Heat.mp4");
+
+        Assertions.assertEquals(firstRoot.resolve("Movies/Heat.mp4"), libraryTree.resolve("Movies/Heat.mp4").get());
+        Assertions.assertEquals(secondRoot.resolve("Movies/Alien.mp4"), libraryTree.resolve("Movies/Alien.mp4").get());
+        Assertions.assertFalse(libraryTree.resolve("Movies/Missing.mp4").isPresent());
+
+        Files.delete(firstRoot.resolve("Movies/Heat.mp4"));
+        libraryTree.remove("Movies/Heat.mp4");
+        Assertions.assertEquals(secondRoot.resolve("Movies/Heat.mp4"), libraryTree.resolve("Movies/Heat.mp4").get());
+    }
+
+    @Test
+    public void addRemoveTest() throws IOException {
+        Files.createDirectories(firstRoot.resolve("Series/Other/Season 1"));
+        Files.createFile(firstRoot.resolve("Series/Other/Season 1/Episode 1.mp4"));
+        libraryTree.add("Series/Other");
+
+        Assertions.assertEquals(new HashSet<>(Arrays.asList("Series/Show", "Series/Other")), libraryTree.list("Series"));
+        Assertions.assertTrue(libraryTree.exists("Series/Other/Season 1/Episode 1.mp4"));
+
+        Files.delete(secondRoot.resolve("Series/Show/Season 1/Episode 1.mp4"));
+        Files.delete(secondRoot.resolve("Series/Show/Season 1"));
+        Files.delete(secondRoot.resolve("Series/Show"));
+        libraryTree.remove("Series/Show");
+
+        Assertions.assertEquals(new HashSet<>(Arrays.asList("Series/Other")), libraryTree.list("Series"));
+        Assertions.assertFalse(libraryTree.exists("Series/Show/Season 1"));
+        Assertions.assertEquals(0, libraryTree.count("Series/Show/Season 1"));
+
+        // Still on the first root
+        libraryTree.remove("Series/Other");
+        Assertions.assertTrue(libraryTree.exists("Series/Other"));
+    }
+
+    @Test
+    public void missingAncestorTest() throws IOException {
+        // Only the file's own event arrives, not the ones for the directories it was created in
+        Files.createDirectories(firstRoot.resolve("Series/New Show/Season 1"));
+        Files.createFile(firstRoot.resolve("Series/New Show/Season 1/Episode 1.mp4"));
+        libraryTree.add("Series/New Show/Season 1/Episode 1.mp4");
+
+        Assertions.assertEquals(new HashSet<>(Arrays.asList("Series/Show", "Series/New Show")), libraryTree.list("Series"));
+        Assertions.assertEquals(new HashSet<>(Arrays.asList("Series/New Show/Season 1")), libraryTree.list("Series/New Show"));
+        Assertions.assertEquals(firstRoot.resolve("Series/New Show"), libraryTree.resolve("Series/New Show").get());
+        Assertions.assertTrue(libraryTree.rebuild().isEmpty());
+    }
+
+    @Test
+    public void unknownPathTest() {
+        libraryTree.remove("Movies/Never Seen.mp4");
+
+        Assertions.assertFalse(libraryTree.exists("Movies/Never Seen.mp4"));
+        Assertions.assertNull(MediaPath.find("Movies/Never Seen.mp4"));
+    }
+
+    @Test
+    public void rebuildDiffTest() throws IOException {
+        Files.createFile(firstRoot.resolve("Movies/Alien.mp4"));
+        Files.createFile(secondRoot.resolve("Movies/Ran.mp4"));
+        Files.delete(secondRoot.resolve("Series/Show/Season 1/Episode 1.mp4"));
+        Files.delete(secondRoot.resolve("Series/Show/Season 1"));
+
+        LibraryTree.Diff diff = libraryTree.rebuild();
+
+        // Alien was already on the second root, so only its root changed
+        Assertions.assertEquals(new HashSet<>(Arrays.asList(MediaPath.of("Movies/Ran.mp4"))), diff.getAdded());
+        Assertions.assertEquals(new HashSet<>(Arrays.asList(MediaPath.of("Series/Show/Season 1"),
+                MediaPath.of("Series/Show/Season 1/Episode 1.mp4"))), diff.getRemoved());
+        Assertions.assertTrue(libraryTree.rebuild().isEmpty());
+    }
+}
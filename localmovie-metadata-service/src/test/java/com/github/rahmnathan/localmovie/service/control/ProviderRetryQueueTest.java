@@ -0,0 +1,37 @@
+package com.github.rahmnathan.localmovie.service.control;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class ProviderRetryQueueTest {
+
+    @Test
+    public void retryTest() throws InterruptedException {
+        ProviderRetryQueue retryQueue = new ProviderRetryQueue(0, 0);
+        CountDownLatch retried = new CountDownLatch(1);
+        retryQueue.setRetryAction(path -> retried.countDown());
+
+        retryQueue.schedule("Movies/Movie.mkv");
+        Assertions.assertTrue(retryQueue.isPending("Movies/Movie.mkv"));
+        Assertions.assertTrue(retried.await(5, TimeUnit.SECONDS));
+
+        retryQueue.remove("Movies/Movie.mkv");
+        Assertions.assertFalse(retryQueue.isPending("Movies/Movie.mkv"));
+        retryQueue.shutdown();
+    }
+
+    @Test
+    public void removedPathIsNotRetriedTest() throws InterruptedException {
+        ProviderRetryQueue retryQueue = new ProviderRetryQueue(1, 1);
+        CountDownLatch retried = new CountDownLatch(1);
+        retryQueue.setRetryAction(path -> retried.countDown());
+
+        retryQueue.schedule("Movies/Movie.mkv");
+        retryQueue.remove("Movies/Movie.mkv");
+        Assertions.assertFalse(retried.await(2, TimeUnit.SECONDS));
+        retryQueue.shutdown();
+    }
+}
@@ -0,0 +1,69 @@
+package com.github.rahmnathan.localmovie.service.control;
+
+import com.github.rahmnathan.localmovie.domain.MediaFile;
+import com.github.rahmnathan.omdb.data.Movie;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class SearchIndexTest {
+    private SearchIndex searchIndex;
+
+    @BeforeEach
+    public void initialize(){
+        searchIndex = new SearchIndex();
+        searchIndex.add(buildMediaFile("Movies/Terminator.mkv", "The Terminator", "Arnold Schwarzenegger", "Action, Sci-Fi", "A cyborg is sent back in time."));
+        searchIndex.add(buildMediaFile("Movies/Predator.mkv", "Predator", "Arnold Schwarzenegger", "Action", "A team is hunted in the jungle."));
+        searchIndex.add(buildMediaFile("Movies/Amelie.mkv", "Amelie", "Audrey Tautou", "Comedy, Romance", "A shy waitress in Paris."));
+        searchIndex.add(buildMediaFile("Series/Show/Season 1", "Season 1", null, null, null));
+    }
+
+    @Test
+    public void rankingTest(){
+        Assertions.assertEquals(Arrays.asList("Movies/Predator.mkv", "Movies/Terminator.mkv"), searchIndex.search("predator schwarzenegger", 0, 10));
+        Assertions.assertEquals(Arrays.asList("Movies/Terminator.mkv"), searchIndex.search("cyborg", 0, 10));
+        Assertions.assertEquals(3, searchIndex.size());
+    }
+
+    @Test
+    public void prefixAndTypoTest(){
+        Assertions.assertEquals(Arrays.asList("Movies/Terminator.mkv"), searchIndex.search("termin", 0, 10));
+        Assertions.assertEquals(Arrays.asList("Movies/Terminator.mkv"), searchIndex.search("terminater", 0, 10));
+        Assertions.assertEquals(Arrays.asList("Movies/Amelie.mkv"), searchIndex.search("amelei", 0, 10));
+    }
+
+    @Test
+    public void paginateTest(){
+        Assertions.assertEquals(1, searchIndex.search("arnold", 0, 1).size());
+        Assertions.assertEquals(1, searchIndex.search("arnold", 1, 1).size());
+        Assertions.assertTrue(searchIndex.search("arnold", 2, 1).isEmpty());
+    }
+
+    @Test
+    public void updateTest(){
+        searchIndex.add(buildMediaFile("Movies/Predator.mkv", "Predators", "Adrien Brody", "Action", null));
+        Assertions.assertEquals(Collections.singletonList("Movies/Terminator.mkv"), searchIndex.search("schwarzenegger", 0, 10));
+
+        searchIndex.remove("Movies/Terminator.mkv");
+        Assertions.assertTrue(searchIndex.search("terminator", 0, 10).isEmpty());
+        Assertions.assertEquals(2, searchIndex.size());
+    }
+
+    private MediaFile buildMediaFile(String path, String title, String actors, String genre, String plot) {
+        Movie movie = Movie.Builder.newInstance()
+                .setTitle(title)
+                .setActors(actors)
+                .setGenre(genre)
+                .setPlot(plot)
+                .build();
+
+        return MediaFile.Builder.newInstance()
+                .setFileName(path.substring(path.lastIndexOf('/') + 1))
+                .setPath(path)
+                .setMovie(movie)
+                .build();
+    }
+}
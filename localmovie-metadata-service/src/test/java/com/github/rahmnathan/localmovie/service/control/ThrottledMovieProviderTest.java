@@ -0,0 +1,33 @@
+package com.github.rahmnathan.localmovie.service.control;
+
+import com.github.rahmnathan.omdb.exception.MovieProviderException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeoutException;
+
+public class ThrottledMovieProviderTest {
+
+    @Test
+    public void providerFailureTest() {
+        Assertions.assertTrue(ThrottledMovieProvider.isProviderFailure(new IllegalStateException(new SocketTimeoutException("Read timed out"))));
+        Assertions.assertTrue(ThrottledMovieProvider.isProviderFailure(new TimeoutException()));
+        Assertions.assertTrue(ThrottledMovieProvider.isProviderFailure(new HttpFailure(503)));
+
+        Assertions.assertFalse(ThrottledMovieProvider.isProviderFailure(new MovieProviderException("Movie not found!")));
+        Assertions.assertFalse(ThrottledMovieProvider.isProviderFailure(new HttpFailure(404)));
+    }
+
+    public static class HttpFailure extends RuntimeException {
+        private final int statusCode;
+
+        private HttpFailure(int statusCode) {
+            this.statusCode = statusCode;
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+    }
+}
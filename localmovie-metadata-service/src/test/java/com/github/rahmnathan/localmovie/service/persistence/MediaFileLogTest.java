@@ -0,0 +1,97 @@
+package com.github.rahmnathan.localmovie.service.persistence;
+
+import com.github.rahmnathan.localmovie.domain.MediaFile;
+import com.github.rahmnathan.omdb.data.Movie;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+public class MediaFileLogTest {
+    private String storagePath;
+
+    @BeforeEach
+    public void initialize() throws IOException {
+        storagePath = Files.createTempDirectory("storage").toString();
+    }
+
+    @Test
+    public void reopenTest() {
+        MediaFileLog mediaFileLog = new MediaFileLog(storagePath, true);
+        mediaFileLog.put(buildMediaFile("Movies/first.mkv", "First", 1));
+        mediaFileLog.put(buildMediaFile("Movies/second.mkv", "Second", 2));
+        mediaFileLog.put(buildMediaFile("Movies/first.mkv", "First Updated", 3));
+        mediaFileLog.remove("Movies/second.mkv");
+        mediaFileLog.close();
+
+        MediaFileLog reopenedLog = new MediaFileLog(storagePath, true);
+        MediaFile mediaFile = reopenedLog.get("Movies/first.mkv").orElseThrow(AssertionError::new);
+
+        Assertions.assertEquals(1, reopenedLog.size());
+        Assertions.assertFalse(reopenedLog.get("Movies/second.mkv").isPresent());
+        Assertions.assertEquals("First Updated", mediaFile.getMovie().getTitle());
+        Assertions.assertEquals(3L, mediaFile.getVersion());
+        Assertions.assertEquals(1000L, mediaFile.getCreated());
+        Assertions.assertEquals("abc123", mediaFile.getPosterHash());
+        Assertions.assertNull(mediaFile.getMovie().getPlot());
+        reopenedLog.close();
+    }
+
+    @Test
+    public void growthTest() {
+        MediaFileLog mediaFileLog = new MediaFileLog(storagePath, true);
+        for (int i = 0; i < 50000; i++)
+            mediaFileLog.put(buildMediaFile("Series/Show/Season 1/Episode " + i + ".mkv", "Episode " + i, i));
+
+        Assertions.assertEquals(50000, mediaFileLog.size());
+        Assertions.assertEquals("Episode 49999", mediaFileLog.get("Series/Show/Season 1/Episode 49999.mkv")
+                .orElseThrow(AssertionError::new).getMovie().getTitle());
+        mediaFileLog.close();
+    }
+
+    @Test
+    public void unchangedTest() {
+        MediaFileLog mediaFileLog = new MediaFileLog(storagePath, true);
+        mediaFileLog.put(buildMediaFile("Movies/first.mkv", "First", 1));
+        mediaFileLog.put(buildMediaFile("Movies/first.mkv", "Refreshed", 1));
+
+        // Same version and poster, so the refresh isn't written again
+        Assertions.assertEquals("First", mediaFileLog.get("Movies/first.mkv").orElseThrow(AssertionError::new).getMovie().getTitle());
+
+        mediaFileLog.put(buildMediaFile("Movies/first.mkv", "Updated", 2));
+        Assertions.assertEquals("Updated", mediaFileLog.get("Movies/first.mkv").orElseThrow(AssertionError::new).getMovie().getTitle());
+        mediaFileLog.close();
+    }
+
+    @Test
+    public void runtimeCompactionTest() throws IOException {
+        MediaFileLog mediaFileLog = new MediaFileLog(storagePath, true);
+        for (int i = 0; i < 200000; i++)
+            mediaFileLog.put(buildMediaFile("Movies/Movie " + (i % 10) + ".mkv", "Movie " + i, i));
+
+        // Superseded records are compacted away instead of growing the log past its initial size
+        Assertions.assertEquals(4 * 1024 * 1024, Files.size(Paths.get(storagePath, "metadata", "mediafiles.log")));
+        Assertions.assertEquals(10, mediaFileLog.size());
+        Assertions.assertEquals("Movie 199999", mediaFileLog.get("Movies/Movie 9.mkv")
+                .orElseThrow(AssertionError::new).getMovie().getTitle());
+        mediaFileLog.close();
+
+        MediaFileLog reopenedLog = new MediaFileLog(storagePath, true);
+        Assertions.assertEquals(10, reopenedLog.size());
+        reopenedLog.close();
+    }
+
+    private MediaFile buildMediaFile(String path, String title, long version) {
+        return MediaFile.Builder.newInstance()
+                .setPath(path)
+                .setFileName(path.substring(path.lastIndexOf('/') + 1))
+                .setMovie(Movie.Builder.newInstance().setTitle(title).setGenre("Drama").build())
+                .setPosterHash("abc123")
+                .setCreated(1000)
+                .setVersion(version)
+                .build();
+    }
+}
@@ -0,0 +1,169 @@
+package com.github.rahmnathan.localmovie.service.persistence;
+
+import com.github.rahmnathan.localmovie.domain.MediaFile;
+import com.github.rahmnathan.localmovie.service.control.ThrottledMovieProvider;
+import com.github.rahmnathan.omdb.data.Movie;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.domain.Pageable;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+public class MovieRepositoryMonitorTest {
+    private final Set<String> unresolvable = new HashSet<>();
+    private MovieRepository repository;
+    private ThrottledMovieProvider movieProvider;
+    private Path checkpointFile;
+    private String storagePath;
+
+    @BeforeEach
+    public void initialize() throws IOException {
+        storagePath = Files.createTempDirectory("storage").toString();
+        checkpointFile = Files.createDirectories(Paths.get(storagePath, "metadata")).resolve("repair.checkpoint");
+        repository = mock(MovieRepository.class);
+        movieProvider = mock(ThrottledMovieProvider.class);
+        when(movieProvider.isAvailable()).thenReturn(true);
+        when(movieProvider.getMovieAsync(anyString())).thenAnswer(invocation -> lookup((String) invocation.getArguments()[0]));
+    }
+
+    @Test
+    public void resumeTest() throws IOException {
+        Files.write(checkpointFile, "Movies/B.mkv".getBytes(StandardCharsets.UTF_8));
+        when(repository.findMissingValuesAfter(eq("Movies/B.mkv"), any(Pageable.class))).thenReturn(incomplete("C", "D"));
+        when(repository.findMissingValuesAfter(eq("Movies/D.mkv"), any(Pageable.class))).thenReturn(incomplete("E"));
+
+        buildMonitor().checkForEmptyValues();
+
+        verify(movieProvider).getMovieAsync("C");
+        verify(movieProvider).getMovieAsync("D");
+        verify(movieProvider).getMovieAsync("E");
+        verify(movieProvider, never()).getMovieAsync("A");
+        Assertions.assertEquals(Arrays.asList(Arrays.asList("Movies/C.mkv", "Movies/D.mkv"), Collections.singletonList("Movies/E.mkv")), savedPaths());
+        Assertions.assertEquals("", readCheckpoint());
+
+        // A finished run starts over, so the rows before the old checkpoint are repaired too
+        buildMonitor().checkForEmptyValues();
+        verify(repository).findMissingValuesAfter(eq(""), any(Pageable.class));
+    }
+
+    @Test
+    public void saveFailureTest() {
+        when(repository.findMissingValuesAfter(eq(""), any(Pageable.class))).thenReturn(incomplete("A", "B"));
+        doThrow(new IllegalStateException("Row was updated by another transaction")).when(repository).saveAll(any());
+
+        buildMonitor().checkForEmptyValues();
+
+        verify(movieProvider).getMovieAsync("A");
+        verify(movieProvider).getMovieAsync("B");
+        verify(repository, never()).findMissingValuesAfter(eq("Movies/B.mkv"), any(Pageable.class));
+        Assertions.assertFalse(Files.exists(checkpointFile));
+    }
+
+    @Test
+    public void circuitOpenTest() throws IOException {
+        Files.write(checkpointFile, "Movies/A.mkv".getBytes(StandardCharsets.UTF_8));
+        when(repository.findMissingValuesAfter(eq("Movies/A.mkv"), any(Pageable.class))).thenReturn(incomplete("B", "C"));
+        when(movieProvider.isAvailable()).thenReturn(false);
+        unresolvable.addAll(Arrays.asList("B", "C"));
+
+        buildMonitor().checkForEmptyValues();
+
+        verify(movieProvider).getMovieAsync("B");
+        verify(movieProvider).getMovieAsync("C");
+        verify(repository, never()).saveAll(any());
+        Assertions.assertEquals("Movies/A.mkv", readCheckpoint());
+    }
+
+    @Test
+    public void unresolvableTest() throws IOException {
+        when(repository.findMissingValuesAfter(eq(""), any(Pageable.class))).thenAnswer(invocation -> incomplete("E"));
+        unresolvable.add("E");
+        MovieRepositoryMonitor monitor = buildMonitor();
+
+        for (int i = 0; i < 4; i++) {
+            monitor.checkForEmptyValues();
+            Assertions.assertEquals("", readCheckpoint());
+        }
+
+        // Given up on after three failed runs
+        verify(movieProvider, times(3)).getMovieAsync("E");
+    }
+
+    private MovieRepositoryMonitor buildMonitor() {
+        return new MovieRepositoryMonitor(repository, movieProvider, storagePath, 2);
+    }
+
+    private CompletableFuture<Movie> lookup(String title) {
+        CompletableFuture<Movie> result = new CompletableFuture<>();
+        if (unresolvable.contains(title)) {
+            result.completeExceptionally(new IllegalStateException("Not found - " + title));
+        } else {
+            result.complete(completeMovie(title));
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<List<String>> savedPaths() {
+        ArgumentCaptor<Iterable> saved = ArgumentCaptor.forClass(Iterable.class);
+        verify(repository, atLeastOnce()).saveAll(saved.capture());
+
+        List<List<String>> batches = new ArrayList<>();
+        for (Iterable<MediaFile> batch : saved.getAllValues()) {
+            List<String> paths = new ArrayList<>();
+            batch.forEach(mediaFile -> {
+                Assertions.assertFalse(mediaFile.getMovie().hasMissingValues());
+                paths.add(mediaFile.getPath());
+            });
+            batches.add(paths);
+        }
+
+        return batches;
+    }
+
+    private String readCheckpoint() throws IOException {
+        return new String(Files.readAllBytes(checkpointFile), StandardCharsets.UTF_8);
+    }
+
+    private static List<MediaFile> incomplete(String... titles) {
+        List<MediaFile> mediaFiles = new ArrayList<>();
+        for (String title : titles)
+            mediaFiles.add(buildMediaFile("Movies/" + title + ".mkv", Movie.Builder.newInstance().setTitle(title).build()));
+
+        return mediaFiles;
+    }
+
+    private static MediaFile buildMediaFile(String path, Movie movie) {
+        return MediaFile.Builder.newInstance()
+                .setPath(path)
+                .setFileName(path.substring(path.lastIndexOf('/') + 1))
+                .setMovie(movie)
+                .build();
+    }
+
+    private static Movie completeMovie(String title) {
+        return Movie.Builder.newInstance()
+                .setTitle(title)
+                .setImage("image")
+                .setIMDBRating("7.0")
+                .setMetaRating("70")
+                .setReleaseYear("2000")
+                .setGenre("Drama")
+                .setActors("Actor")
+                .setPlot("Plot")
+                .build();
+    }
+}
@@ -0,0 +1,114 @@
+package com.github.rahmnathan.localmovies.web.config;
+
+import com.fasterxml.jackson.annotation.JsonFilter;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonStreamContext;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.FilterProvider;
+import com.fasterxml.jackson.databind.ser.PropertyWriter;
+import com.fasterxml.jackson.databind.ser.impl.SimpleBeanPropertyFilter;
+import com.fasterxml.jackson.databind.ser.impl.SimpleFilterProvider;
+
+import java.util.*;
+
+/**
+ * Writes only the requested properties of MediaFiles and their Movies, straight from the objects being serialized.
+ * Fields are property names, with nested properties given by their dotted path, like "path,movie.title".
+ * Naming an object includes all of its properties, and naming a nested property includes the objects around it.
+ */
+public class FieldProjection extends SimpleBeanPropertyFilter {
+    public static final String FILTER_ID = "fieldProjection";
+    public static final FilterProvider ALL_FIELDS = new SimpleFilterProvider().addFilter(FILTER_ID, SimpleBeanPropertyFilter.serializeAll());
+    private final Set<String> fields;
+    private final Set<String> parents = new HashSet<>();
+    private final FilterProvider filterProvider;
+
+    private FieldProjection(Set<String> fields) {
+        this.fields = fields;
+        for (String field : fields) {
+            for (int end = field.indexOf('.'); end > 0; end = field.indexOf('.', end + 1))
+                parents.add(field.substring(0, end));
+        }
+
+        this.filterProvider = new SimpleFilterProvider().addFilter(FILTER_ID, this);
+    }
+
+    /**
+     * @param fields - Comma separated fields to write
+     * @return - Projection of the fields, or empty if no fields were given
+     */
+    public static Optional<FieldProjection> parse(String fields) {
+        if (fields == null)
+            return Optional.empty();
+
+        Set<String> parsedFields = new TreeSet<>();
+        for (String field : fields.split(",")) {
+            if (!field.trim().isEmpty())
+                parsedFields.add(field.trim());
+        }
+
+        return parsedFields.isEmpty() ? Optional.empty() : Optional.of(new FieldProjection(parsedFields));
+    }
+
+    public FilterProvider getFilterProvider() {
+        return filterProvider;
+    }
+
+    @Override
+    public void serializeAsField(Object pojo, JsonGenerator jsonGenerator, SerializerProvider provider, PropertyWriter writer) throws Exception {
+        if (includes(propertyPath(jsonGenerator, writer.getName()))) {
+            writer.serializeAsField(pojo, jsonGenerator, provider);
+        } else if (!jsonGenerator.canOmitFields()) {
+            writer.serializeAsOmittedField(pojo, jsonGenerator, provider);
+        }
+    }
+
+    private boolean includes(String path) {
+        if (fields.contains(path) || parents.contains(path))
+            return true;
+
+        for (int end = path.lastIndexOf('.'); end > 0; end = path.lastIndexOf('.', end - 1)) {
+            if (fields.contains(path.substring(0, end)))
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * The enclosing objects' property names are the current names of the parent contexts
+     */
+    private static String propertyPath(JsonGenerator jsonGenerator, String name) {
+        StringBuilder path = new StringBuilder(name);
+        for (JsonStreamContext context = jsonGenerator.getOutputContext().getParent(); context != null; context = context.getParent()) {
+            if (context.inObject() && context.getCurrentName() != null)
+                path.insert(0, context.getCurrentName() + ".");
+        }
+
+        return path.toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return fields.equals(((FieldProjection) o).fields);
+    }
+
+    @Override
+    public int hashCode() {
+        return fields.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return String.join(",", fields);
+    }
+
+    /**
+     * Mixed into the projectable types so Jackson passes their properties through the filter
+     */
+    @JsonFilter(FILTER_ID)
+    public interface Projectable {
+    }
+}
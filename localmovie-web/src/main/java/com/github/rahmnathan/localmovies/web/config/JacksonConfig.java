@@ -0,0 +1,18 @@
+package com.github.rahmnathan.localmovies.web.config;
+
+import com.github.rahmnathan.localmovie.domain.MediaFile;
+import com.github.rahmnathan.omdb.data.Movie;
+import org.springframework.boot.autoconfigure.jackson.Jackson2ObjectMapperBuilderCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class JacksonConfig {
+    @Bean
+    public Jackson2ObjectMapperBuilderCustomizer fieldProjectionCustomizer() {
+        return builder -> builder
+                .mixIn(MediaFile.class, FieldProjection.Projectable.class)
+                .mixIn(Movie.class, FieldProjection.Projectable.class)
+                .filters(FieldProjection.ALL_FIELDS);
+    }
+}
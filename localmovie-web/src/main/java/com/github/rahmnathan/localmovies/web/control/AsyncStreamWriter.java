@@ -0,0 +1,225 @@
+package com.github.rahmnathan.localmovies.web.control;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes a file to a non-blocking servlet output stream. A container thread is only held while
+ * the socket can accept more data - the rest of the time the writer is parked and costs no thread.
+ */
+class AsyncStreamWriter implements WriteListener, AsyncListener {
+    private final Logger logger = LoggerFactory.getLogger(AsyncStreamWriter.class.getName());
+    private final AtomicBoolean finished = new AtomicBoolean(false);
+    private final BandwidthScheduler.StreamBandwidth bandwidth;
+    private final Iterator<FileSender.RangePart> parts;
+    private final BandwidthScheduler scheduler;
+    private final AtomicInteger activeStreamGauge;
+    private final AtomicInteger parkedWriterGauge;
+    private final AtomicInteger activeWriterGauge;
+    private final ServletOutputStream output;
+    private final AsyncContext asyncContext;
+    private final FileChannel input;
+    private final ByteBuffer buffer;
+    private volatile boolean parked;
+    private ByteBuffer cached;
+    private byte[] trailer;
+    private long position;
+    private long remaining;
+
+    AsyncStreamWriter(AsyncContext asyncContext, ServletOutputStream output, FileChannel input, Iterator<FileSender.RangePart> parts,
+                      byte[] trailer, int chunkSize, BandwidthScheduler scheduler, BandwidthScheduler.StreamBandwidth bandwidth,
+                      AtomicInteger activeStreamGauge, AtomicInteger activeWriterGauge, AtomicInteger parkedWriterGauge) {
+        this.buffer = ByteBuffer.allocate(chunkSize);
+        this.scheduler = scheduler;
+        this.bandwidth = bandwidth;
+        this.activeStreamGauge = activeStreamGauge;
+        this.activeWriterGauge = activeWriterGauge;
+        this.parkedWriterGauge = parkedWriterGauge;
+        this.asyncContext = asyncContext;
+        this.trailer = trailer;
+        this.output = output;
+        this.input = input;
+        this.parts = parts;
+
+        buffer.flip();
+        activeStreamGauge.getAndIncrement();
+        park();
+    }
+
+    @Override
+    public void onWritePossible() throws IOException {
+        if (finished.get())
+            return;
+
+        unpark();
+        activeWriterGauge.getAndIncrement();
+        try {
+            while (output.isReady()) {
+                if (!buffer.hasRemaining()) {
+                    if (!fillBuffer()) {
+                        finish();
+                        return;
+                    }
+
+                    long delay = bandwidth.reserve(buffer.remaining());
+                    if (delay > 0) {
+                        // Over this stream's share - the socket is still writable so nothing would call us back
+                        park();
+                        scheduler.schedule(this::dispatchResume, delay);
+                        return;
+                    }
+                }
+
+                int chunkLength = buffer.remaining();
+                output.write(buffer.array(), buffer.position(), chunkLength);
+                buffer.position(buffer.limit());
+                bandwidth.sent(chunkLength);
+            }
+
+            // The socket is full - the container calls back once the client has drained it
+            park();
+        } finally {
+            activeWriterGauge.getAndDecrement();
+        }
+    }
+
+    /**
+     * Runs on the scheduler's timer thread, so the write itself is handed to a container thread
+     */
+    private void dispatchResume() {
+        if (finished.get())
+            return;
+
+        try {
+            asyncContext.start(this::resume);
+        } catch (IllegalStateException e) {
+            onError(e);
+        }
+    }
+
+    private void resume() {
+        try {
+            onWritePossible();
+        } catch (IOException | RuntimeException e) {
+            onError(e);
+        }
+    }
+
+    private boolean fillBuffer() throws IOException {
+        buffer.clear();
+        while (buffer.position() == 0) {
+            if (cached != null && cached.hasRemaining()) {
+                int chunkLength = Math.min(cached.remaining(), buffer.remaining());
+                ByteBuffer chunk = cached.duplicate();
+                chunk.limit(chunk.position() + chunkLength);
+                buffer.put(chunk);
+                cached.position(cached.position() + chunkLength);
+            } else if (remaining > 0) {
+                buffer.limit((int) Math.min(buffer.capacity(), remaining));
+                int read = input.read(buffer, position);
+                if (read < 0)
+                    throw new EOFException("File truncated while streaming at position " + position);
+
+                position += read;
+                remaining -= read;
+            } else if (parts.hasNext()) {
+                FileSender.RangePart part = parts.next();
+                buffer.put(part.getHeader());
+                cached = part.getCached();
+                position = part.getRange().getStart();
+                remaining = part.getRange().getLength();
+            } else if (trailer != null) {
+                buffer.put(trailer);
+                trailer = null;
+            } else {
+                return false;
+            }
+        }
+
+        buffer.flip();
+        return true;
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        logger.error("Failure streaming video", throwable);
+        finish();
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        release();
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+        logger.info("Stream timed out");
+        finish();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        logger.error("Failure streaming video", event.getThrowable());
+        finish();
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+        // Nothing to do
+    }
+
+    /**
+     * Releases everything the writer holds and completes the response, for when the stream couldn't be started
+     */
+    void abort() {
+        finish();
+    }
+
+    private void finish() {
+        if (release())
+            asyncContext.complete();
+    }
+
+    private boolean release() {
+        if (!finished.compareAndSet(false, true))
+            return false;
+
+        unpark();
+        bandwidth.close();
+        activeStreamGauge.getAndDecrement();
+        try {
+            input.close();
+        } catch (IOException e) {
+            logger.error("Failure closing video file", e);
+        }
+
+        return true;
+    }
+
+    private synchronized void park() {
+        if (!parked && !finished.get()) {
+            parked = true;
+            parkedWriterGauge.getAndIncrement();
+        }
+    }
+
+    private synchronized void unpark() {
+        if (parked) {
+            parked = false;
+            parkedWriterGauge.getAndDecrement();
+        }
+    }
+}
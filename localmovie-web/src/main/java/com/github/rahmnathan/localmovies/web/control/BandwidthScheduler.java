@@ -0,0 +1,229 @@
+package com.github.rahmnathan.localmovies.web.control;
+
+import com.github.rahmnathan.localmovie.domain.MovieClient;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Shares egress bandwidth between concurrent streams. Every stream gets its own token bucket whose rate is
+ * its weighted share of the global limit, capped by the per-stream limit. A global bucket enforces the overall cap.
+ * Shares are work-conserving: every second, streams that didn't use their share, like those held back by a slow
+ * client, are given what they used plus some headroom, and what they left over is split between the streams that
+ * wanted more. The scheduler's own thread only keeps time - writes are resumed on the container's threads.
+ * Each active stream's throughput is published as a gauge tagged with a stream slot, and slots are reused
+ * once their stream ends so the number of gauges stays at the most streams ever active at once.
+ */
+@Component
+public class BandwidthScheduler {
+    private static final long REBALANCE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final double DEMAND_HEADROOM = 1.25;
+    private static final double MIN_DEMAND = 64 * 1024;
+    private final Logger logger = LoggerFactory.getLogger(BandwidthScheduler.class.getName());
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    private final Map<MovieClient, DistributionSummary> throughputSummaries = new EnumMap<>(MovieClient.class);
+    private final Set<StreamBandwidth> activeStreams = ConcurrentHashMap.newKeySet();
+    private final List<StreamBandwidth> streamSlots = new ArrayList<>();
+    private final Map<MovieClient, Double> clientWeights = new EnumMap<>(MovieClient.class);
+    private final TokenBucket globalBucket;
+    private final long globalLimit;
+    private final long streamLimit;
+
+    public BandwidthScheduler(@Value("${stream.bandwidth.global.limit:0}") long globalLimit,
+                              @Value("${stream.bandwidth.stream.limit:0}") long streamLimit,
+                              @Value("${stream.bandwidth.weight.android:1}") double androidWeight,
+                              @Value("${stream.bandwidth.weight.webapp:1}") double webappWeight) {
+        logger.info("Stream bandwidth limits (bytes/s) - global: {} per stream: {}", globalLimit, streamLimit);
+        this.globalBucket = new TokenBucket(globalLimit);
+        this.globalLimit = globalLimit;
+        this.streamLimit = streamLimit;
+        clientWeights.put(MovieClient.ANDROID, androidWeight);
+        clientWeights.put(MovieClient.WEBAPP, webappWeight);
+
+        for (MovieClient client : MovieClient.values()) {
+            throughputSummaries.put(client, Metrics.summary("localmovies.stream.throughput", "client", client.name()));
+        }
+
+        if (isEnabled())
+            timer.scheduleAtFixedRate(() -> rebalance(true), REBALANCE_INTERVAL_NANOS, REBALANCE_INTERVAL_NANOS, TimeUnit.NANOSECONDS);
+    }
+
+    public boolean isEnabled() {
+        return globalLimit > 0 || streamLimit > 0;
+    }
+
+    StreamBandwidth register(MovieClient client) {
+        MovieClient streamClient = client == null ? MovieClient.WEBAPP : client;
+        StreamBandwidth stream = new StreamBandwidth(streamClient, clientWeights.get(streamClient));
+        activeStreams.add(stream);
+        assignSlot(stream);
+        rebalance(false);
+        return stream;
+    }
+
+    private void assignSlot(StreamBandwidth stream) {
+        synchronized (streamSlots) {
+            int slot = streamSlots.indexOf(null);
+            if (slot < 0) {
+                slot = streamSlots.size();
+                streamSlots.add(stream);
+                int gaugeSlot = slot;
+                Metrics.gauge("localmovies.stream.throughput.current", Tags.of("stream", String.valueOf(slot)), this,
+                        scheduler -> scheduler.getSlotThroughput(gaugeSlot));
+            } else {
+                streamSlots.set(slot, stream);
+            }
+            stream.slot = slot;
+        }
+    }
+
+    private void releaseSlot(StreamBandwidth stream) {
+        synchronized (streamSlots) {
+            streamSlots.set(stream.slot, null);
+        }
+    }
+
+    /**
+     * @return - Bytes per second the stream in the slot sent over its last sample, or NaN if the slot is free
+     */
+    double getSlotThroughput(int slot) {
+        synchronized (streamSlots) {
+            StreamBandwidth stream = streamSlots.get(slot);
+            return stream == null ? Double.NaN : stream.throughput;
+        }
+    }
+
+    /**
+     * @param task - Task to run once the delay is up. It runs on the timer thread, so it should only hand the
+     *             real work to another thread.
+     * @param delayNanos - Delay before the task runs
+     */
+    void schedule(Runnable task, long delayNanos) {
+        timer.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Max-min fair split of the global limit. Streams are visited from the smallest demand per unit of weight up,
+     * and each gets the lesser of its demand and its weighted share of what is still unassigned.
+     * @param measure - Whether to measure each stream's demand again, which only the periodic rebalance does so
+     *                demand is always measured over a full interval
+     */
+    synchronized void rebalance(boolean measure) {
+        List<StreamBandwidth> streams = new ArrayList<>(activeStreams);
+        if (measure)
+            streams.forEach(StreamBandwidth::measureDemand);
+
+        // Without a global limit there's nothing to share, so every stream may use the whole per-stream limit
+        if (globalLimit <= 0) {
+            streams.forEach(stream -> stream.bucket.setRate(streamLimit));
+            return;
+        }
+
+        streams.sort(Comparator.comparingDouble(stream -> stream.demand / stream.getWeight()));
+
+        double available = globalLimit;
+        double remainingWeight = streams.stream().mapToDouble(StreamBandwidth::getWeight).sum();
+        for (StreamBandwidth stream : streams) {
+            double fairShare = available * stream.getWeight() / remainingWeight;
+            double rate = Math.min(stream.demand, fairShare);
+            stream.bucket.setRate(rate);
+            available -= rate;
+            remainingWeight -= stream.getWeight();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+
+    class StreamBandwidth implements AutoCloseable {
+        private static final long SAMPLE_INTERVAL_NANOS = 1_000_000_000L;
+        private final TokenBucket bucket = new TokenBucket(0);
+        private final MovieClient client;
+        private final double weight;
+        private volatile boolean throttled;
+        private volatile double demand;
+        private volatile double throughput;
+        private int slot;
+        private long sampleStart = System.nanoTime();
+        private long sampleBytes;
+        private long windowStart = System.nanoTime();
+        private long windowBytes;
+
+        private StreamBandwidth(MovieClient client, double weight) {
+            this.client = client;
+            this.weight = weight;
+            this.demand = streamLimit > 0 ? streamLimit : Double.MAX_VALUE;
+        }
+
+        double getWeight() {
+            return weight;
+        }
+
+        double getRate() {
+            return bucket.getRate();
+        }
+
+        /**
+         * @return - Nanoseconds to wait before the bytes may be written
+         */
+        long reserve(long bytes) {
+            long streamDelay = bucket.reserve(bytes);
+            if (streamDelay > 0)
+                throttled = true;
+
+            return Math.max(streamDelay, globalBucket.reserve(bytes));
+        }
+
+        synchronized void sent(long bytes) {
+            windowBytes += bytes;
+            sampleBytes += bytes;
+            long elapsed = System.nanoTime() - sampleStart;
+            if (elapsed >= SAMPLE_INTERVAL_NANOS)
+                recordSample(elapsed);
+        }
+
+        /**
+         * A stream its own bucket held back wants as much as it may have. Any other stream was limited by something
+         * else, so it wants about what it sent since the last measurement. New streams start out wanting everything.
+         */
+        private synchronized void measureDemand() {
+            long now = System.nanoTime();
+            double sentRate = windowBytes * 1_000_000_000d / Math.max(1, now - windowStart);
+            double maxRate = streamLimit > 0 ? streamLimit : Double.MAX_VALUE;
+            demand = throttled ? maxRate : Math.min(maxRate, Math.max(MIN_DEMAND, sentRate * DEMAND_HEADROOM));
+
+            throttled = false;
+            windowStart = now;
+            windowBytes = 0;
+        }
+
+        private void recordSample(long elapsed) {
+            throughput = sampleBytes * 1_000_000_000d / elapsed;
+            throughputSummaries.get(client).record(throughput);
+            sampleStart = System.nanoTime();
+            sampleBytes = 0;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (activeStreams.remove(this)) {
+                long elapsed = System.nanoTime() - sampleStart;
+                if (sampleBytes > 0 && elapsed > 0)
+                    recordSample(elapsed);
+
+                releaseSlot(this);
+                rebalance(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.github.rahmnathan.localmovies.web.control;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Inclusive byte range of a file, as requested through an HTTP Range header.
+ */
+public class ByteRange {
+    private static final String BYTES_UNIT = "bytes=";
+    private static final int MAX_RANGES = 16;
+    private final long start;
+    private final long end;
+
+    ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public long getEnd() {
+        return end;
+    }
+
+    public long getLength() {
+        return end - start + 1;
+    }
+
+    public String toContentRange(long totalBytes) {
+        return "bytes " + start + "-" + end + "/" + totalBytes;
+    }
+
+    /**
+     * @param rangeHeader - Value of the Range header, may be null
+     * @param totalBytes - Size of the requested file
+     * @return - The satisfiable ranges in ascending order, an empty list if the whole file should be served
+     * or an empty Optional if none of the requested ranges can be satisfied
+     */
+    public static Optional<List<ByteRange>> parse(String rangeHeader, long totalBytes) {
+        if (rangeHeader == null || !rangeHeader.startsWith(BYTES_UNIT))
+            return Optional.of(Collections.emptyList());
+
+        String[] rangeSpecs = rangeHeader.substring(BYTES_UNIT.length()).split(",");
+        if (rangeSpecs.length > MAX_RANGES)
+            return Optional.of(Collections.emptyList());
+
+        List<ByteRange> ranges = new ArrayList<>();
+        for (String rangeSpec : rangeSpecs) {
+            String spec = rangeSpec.trim();
+            int dashIndex = spec.indexOf('-');
+            if (dashIndex < 0)
+                return Optional.of(Collections.emptyList());
+
+            try {
+                String first = spec.substring(0, dashIndex).trim();
+                String last = spec.substring(dashIndex + 1).trim();
+
+                if (first.isEmpty()) {
+                    // Suffix range - the final N bytes of the file
+                    long suffixLength = Long.parseLong(last);
+                    if (suffixLength > 0 && totalBytes > 0)
+                        ranges.add(new ByteRange(Math.max(0, totalBytes - suffixLength), totalBytes - 1));
+                } else {
+                    long start = Long.parseLong(first);
+                    long requestedEnd = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+                    if (requestedEnd < start)
+                        return Optional.of(Collections.emptyList());
+                    if (start < totalBytes)
+                        ranges.add(new ByteRange(start, Math.min(requestedEnd, totalBytes - 1)));
+                }
+            } catch (NumberFormatException e) {
+                return Optional.of(Collections.emptyList());
+            }
+        }
+
+        if (ranges.isEmpty())
+            return Optional.empty();
+
+        return Optional.of(coalesce(ranges));
+    }
+
+    private static List<ByteRange> coalesce(List<ByteRange> ranges) {
+        if (ranges.size() == 1)
+            return ranges;
+
+        ranges.sort(Comparator.comparingLong(ByteRange::getStart));
+        List<ByteRange> result = new ArrayList<>();
+        ByteRange current = ranges.get(0);
+        for (ByteRange next : ranges.subList(1, ranges.size())) {
+            if (next.start <= current.end + 1) {
+                current = new ByteRange(current.start, Math.max(current.end, next.end));
+            } else {
+                result.add(current);
+                current = next;
+            }
+        }
+        result.add(current);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return start + "-" + end;
+    }
+}
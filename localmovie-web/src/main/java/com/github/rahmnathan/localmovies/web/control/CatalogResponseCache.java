@@ -0,0 +1,192 @@
+package com.github.rahmnathan.localmovies.web.control;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.rahmnathan.localmovie.domain.MediaFilePage;
+import com.github.rahmnathan.localmovie.domain.MovieSearchCriteria;
+import com.github.rahmnathan.localmovie.service.boundary.MediaMetadataService;
+import com.github.rahmnathan.localmovies.web.config.FieldProjection;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Serialized catalog pages, keyed by the full search criteria and field projection. Each page is serialized once,
+ * and gzipped once if it's large enough to be worth it, then served as-is until media is added to or deleted from
+ * its directory. Concurrent requests for a page that isn't cached wait for a single rendering of it.
+ */
+@Component
+public class CatalogResponseCache {
+    private static final int MIN_GZIP_SIZE = 1024;
+    private final Logger logger = LoggerFactory.getLogger(CatalogResponseCache.class.getName());
+    private final Map<String, AtomicLong> generations = new ConcurrentHashMap<>();
+    private final Cache<Key, CatalogResponse> responses;
+    private final MediaMetadataService metadataService;
+    private final ObjectMapper objectMapper;
+
+    public CatalogResponseCache(MediaMetadataService metadataService, ObjectMapper objectMapper,
+                                @Value("${cache.responses.max.weight:33554432}") long maxWeight,
+                                @Value("${cache.responses.expire.minutes:10}") long expireMinutes) {
+        logger.info("Response cache - max weight: {} expire after: {} minutes", maxWeight, expireMinutes);
+        this.metadataService = metadataService;
+        this.objectMapper = objectMapper;
+        // Expiry picks up metadata refreshes and view counts, which don't send directory events
+        this.responses = Caffeine.newBuilder()
+                .maximumWeight(maxWeight)
+                .weigher((Key key, CatalogResponse response) -> response.weight())
+                .expireAfterWrite(expireMinutes, TimeUnit.MINUTES)
+                .recordStats()
+                .build();
+
+        CaffeineCacheMetrics.monitor(Metrics.globalRegistry, responses, "localmovies.responses");
+        metadataService.addDirectoryListener(this::invalidate);
+    }
+
+    /**
+     * @param searchCriteria - Page to load
+     * @param projection - Fields to write, or null for all of them
+     * @return - The page serialized as JSON
+     */
+    public CatalogResponse get(MovieSearchCriteria searchCriteria, FieldProjection projection) {
+        Key cacheKey = new Key(searchCriteria, projection);
+        AtomicLong generation = generations.computeIfAbsent(searchCriteria.getPath(), path -> new AtomicLong());
+        long currentGeneration = generation.get();
+        CatalogResponse response = responses.get(cacheKey, key -> render(key, currentGeneration));
+        if (response.generation == currentGeneration)
+            return response;
+
+        // Rendered while the directory was changing, so it may be missing the change
+        responses.asMap().remove(cacheKey, response);
+        long latestGeneration = generation.get();
+        return responses.get(cacheKey, key -> render(key, latestGeneration));
+    }
+
+    /**
+     * @param directory - Directory whose pages are out of date
+     */
+    public void invalidate(String directory) {
+        logger.info("Invalidating cached pages - {}", directory);
+        // Pages from older generations are replaced when next requested, and otherwise left to expire or be evicted
+        generations.computeIfAbsent(directory, path -> new AtomicLong()).incrementAndGet();
+    }
+
+    private CatalogResponse render(Key key, long generation) {
+        MovieSearchCriteria searchCriteria = key.searchCriteria;
+        Integer page = searchCriteria.getPage();
+        boolean firstPage = searchCriteria.getCursor() == null && page != null && page == 0;
+        Integer count = firstPage ? metadataService.loadMediaListLength(searchCriteria) : null;
+        MediaFilePage mediaFilePage = metadataService.loadMediaFilePage(searchCriteria);
+
+        try {
+            byte[] json = key.projection == null ? objectMapper.writeValueAsBytes(mediaFilePage.getMediaFiles())
+                    : objectMapper.writer(key.projection.getFilterProvider()).writeValueAsBytes(mediaFilePage.getMediaFiles());
+            byte[] gzip = json.length < MIN_GZIP_SIZE ? null : gzip(json);
+            return new CatalogResponse(json, gzip, mediaFilePage.getMediaFiles().size(), count, mediaFilePage.getNextCursor(), generation);
+        } catch (JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static byte[] gzip(byte[] json) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(json.length / 4);
+        try (GZIPOutputStream gzipStream = new GZIPOutputStream(compressed)) {
+            gzipStream.write(json);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        return compressed.toByteArray();
+    }
+
+    private static class Key {
+        private final MovieSearchCriteria searchCriteria;
+        private final FieldProjection projection;
+
+        private Key(MovieSearchCriteria searchCriteria, FieldProjection projection) {
+            this.searchCriteria = searchCriteria;
+            this.projection = projection;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return searchCriteria.equals(key.searchCriteria) && Objects.equals(projection, key.projection);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(searchCriteria, projection);
+        }
+    }
+
+    public static class CatalogResponse {
+        private final byte[] json;
+        private final byte[] gzip;
+        private final int size;
+        private final Integer count;
+        private final String nextCursor;
+        private final long generation;
+
+        private CatalogResponse(byte[] json, byte[] gzip, int size, Integer count, String nextCursor, long generation) {
+            this.json = json;
+            this.gzip = gzip;
+            this.size = size;
+            this.count = count;
+            this.nextCursor = nextCursor;
+            this.generation = generation;
+        }
+
+        public byte[] getJson() {
+            return json;
+        }
+
+        /**
+         * @return - The JSON gzipped, or null if it's too small to be worth compressing
+         */
+        public byte[] getGzip() {
+            return gzip;
+        }
+
+        /**
+         * @return - Number of media files on the page
+         */
+        public int getSize() {
+            return size;
+        }
+
+        /**
+         * @return - Number of media files matching the criteria across all pages, only loaded for the first page
+         */
+        public Integer getCount() {
+            return count;
+        }
+
+        /**
+         * @return - Cursor to the next page, or null if this is the last page
+         */
+        public String getNextCursor() {
+            return nextCursor;
+        }
+
+        private int weight() {
+            return json.length + (gzip == null ? 0 : gzip.length);
+        }
+    }
+}
@@ -1,64 +1,301 @@
 package com.github.rahmnathan.localmovies.web.control;
 
+import com.github.rahmnathan.localmovie.domain.MovieClient;
+import com.github.rahmnathan.localmovies.event.control.HotSegmentCache;
+import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.Metrics;
 import org.apache.http.HttpHeaders;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.CacheControl;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.ServletWebRequest;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.*;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
+@Component
 public class FileSender {
 
     private final Logger logger = LoggerFactory.getLogger(FileSender.class.getName());
+    // Counts the streams this class writes itself. Ranges handed to sendfile finish in the connector with no callback
+    // to decrement on, so they're counted as handoffs instead of being included here.
     private final AtomicInteger activeStreamGauge = Metrics.gauge("localmovies.stream.active", new AtomicInteger(0));
-    private static final int DEFAULT_BUFFER_SIZE = 16384;
+    private static final Counter SENDFILE_COUNTER = Metrics.counter("localmovies.stream.sendfile.counter");
+    private final AtomicInteger activeWriterGauge = Metrics.gauge("localmovies.stream.writers.active", new AtomicInteger(0));
+    private final AtomicInteger parkedWriterGauge = Metrics.gauge("localmovies.stream.writers.parked", new AtomicInteger(0));
+    private static final long MAX_TRANSFER_SIZE = 8 * 1024 * 1024;
+    private static final long THROTTLED_TRANSFER_SIZE = 256 * 1024;
+    private static final String CACHE_CONTROL = CacheControl.maxAge(1, TimeUnit.DAYS).cachePrivate().getHeaderValue();
 
-    public void serveResource(Path file, HttpServletRequest request, HttpServletResponse response) {
-        if (response == null || request == null || file == null)
+    // Request attributes Tomcat uses to hand a file region off to the connector's sendfile support
+    private static final String SENDFILE_SUPPORTED = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    private final BandwidthScheduler bandwidthScheduler;
+    private final HotSegmentCache segmentCache;
+    private final boolean asyncEnabled;
+    private final long asyncTimeout;
+    private final int asyncChunkSize;
+
+    public FileSender(@Value("${stream.async.enabled:true}") boolean asyncEnabled,
+                      @Value("${stream.async.timeout:0}") long asyncTimeout,
+                      @Value("${stream.async.chunk.size:65536}") int asyncChunkSize,
+                      BandwidthScheduler bandwidthScheduler, HotSegmentCache segmentCache) {
+        logger.info("Async streaming enabled: {}", asyncEnabled);
+        this.asyncEnabled = asyncEnabled;
+        this.asyncTimeout = asyncTimeout;
+        this.asyncChunkSize = asyncChunkSize;
+        this.bandwidthScheduler = bandwidthScheduler;
+        this.segmentCache = segmentCache;
+    }
+
+    public void serveResource(Path file, ResourceValidator validator, MovieClient client, HttpServletRequest request, HttpServletResponse response) {
+        if (response == null || request == null || file == null || validator == null)
             return;
 
-        long totalBytes = 0L;
-        try {
-            totalBytes = Files.size(file);
-        } catch (IOException e) {
-            logger.error("Failure loading file size", e);
+        response.setHeader(HttpHeaders.CACHE_CONTROL, CACHE_CONTROL);
+        if (new ServletWebRequest(request, response).checkNotModified(validator.getETag(), validator.getLastModified())) {
+            logger.info("Client copy is current - {}", validator.getETag());
+            return;
+        }
+
+        long totalBytes = validator.getSize();
+        String rangeHeader = validator.isRangeApplicable(request) ? request.getHeader(HttpHeaders.RANGE) : null;
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        Optional<List<ByteRange>> requestedRanges = ByteRange.parse(rangeHeader, totalBytes);
+        if (!requestedRanges.isPresent()) {
+            logger.info("Unsatisfiable range requested: {}", rangeHeader);
+            response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + totalBytes);
+            return;
+        }
+
+        List<ByteRange> ranges = requestedRanges.get();
+        if (ranges.size() > 1) {
+            serveMultipleRanges(file, client, request, response, ranges, totalBytes);
+            return;
         }
 
-        long startByte = 0L;
-        String rangeHeader = request.getHeader("Range");
-        if (rangeHeader != null) {
-            startByte = Long.parseLong(rangeHeader.split("-")[0].substring(6));
+        ByteRange range = ranges.isEmpty() ? new ByteRange(0, totalBytes - 1) : ranges.get(0);
+        if (!ranges.isEmpty()) {
             response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setHeader(HttpHeaders.CONTENT_RANGE, range.toContentRange(totalBytes));
         }
+        response.setHeader(HttpHeaders.CONTENT_LENGTH, String.valueOf(range.getLength()));
 
-        response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + startByte + "-" + (totalBytes - 1) + "/" + totalBytes);
-        response.setHeader(HttpHeaders.CONTENT_LENGTH, String.valueOf(totalBytes - startByte));
+        if (range.getLength() > 0 && !bandwidthScheduler.isEnabled()
+                && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED))) {
+            // The connector writes the region straight from the page cache once this request returns. The segment
+            // cache is skipped here - sendfile can't follow bytes already written, and the page cache holds the head.
+            SENDFILE_COUNTER.increment();
+            request.setAttribute(SENDFILE_FILENAME, file.toAbsolutePath().toString());
+            request.setAttribute(SENDFILE_START, range.getStart());
+            request.setAttribute(SENDFILE_END, range.getEnd() + 1);
+            return;
+        }
 
-        streamFile(file, response, startByte);
+        streamFile(file, client, request, response, Collections.singletonList(buildRangePart(file, new byte[0], range)), new byte[0]);
     }
 
-    private void streamFile(Path file, HttpServletResponse response, long startByte){
-        try (InputStream input = new BufferedInputStream(Files.newInputStream(file));
-             OutputStream output = response.getOutputStream()) {
+    private void serveMultipleRanges(Path file, MovieClient client, HttpServletRequest request, HttpServletResponse response, List<ByteRange> ranges, long totalBytes) {
+        String boundary = UUID.randomUUID().toString();
+        String contentType = response.getContentType() == null ? "application/octet-stream" : response.getContentType();
 
-            activeStreamGauge.getAndIncrement();
+        List<RangePart> parts = new ArrayList<>();
+        long contentLength = 0;
+        for (ByteRange range : ranges) {
+            byte[] partHeader = ("\r\n--" + boundary + "\r\n" +
+                    HttpHeaders.CONTENT_TYPE + ": " + contentType + "\r\n" +
+                    HttpHeaders.CONTENT_RANGE + ": " + range.toContentRange(totalBytes) + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
 
-            byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
-            input.skip(startByte);
-            while ((input.read(buffer)) > 0) {
-                output.write(buffer);
-                output.flush();
+            parts.add(buildRangePart(file, partHeader, range));
+            contentLength += partHeader.length + range.getLength();
+        }
+
+        byte[] closingBoundary = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        contentLength += closingBoundary.length;
+
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setHeader(HttpHeaders.CONTENT_TYPE, "multipart/byteranges; boundary=" + boundary);
+        response.setHeader(HttpHeaders.CONTENT_LENGTH, String.valueOf(contentLength));
+        streamFile(file, client, request, response, parts, closingBoundary);
+    }
+
+    /**
+     * Serves the start of the range from the segment cache when it holds that position.
+     */
+    private RangePart buildRangePart(Path file, byte[] header, ByteRange range) {
+        if (range.getLength() <= 0)
+            return new RangePart(header, null, range);
+
+        Optional<ByteBuffer> segment = segmentCache.getSegment(file, range.getStart());
+        if (!segment.isPresent())
+            return new RangePart(header, null, range);
+
+        ByteBuffer cached = segment.get();
+        int cachedLength = (int) Math.min(cached.remaining(), range.getLength());
+        cached.limit(cachedLength);
+        return new RangePart(header, cached, new ByteRange(range.getStart() + cachedLength, range.getEnd()));
+    }
+
+    private void streamFile(Path file, MovieClient client, HttpServletRequest request, HttpServletResponse response, List<RangePart> parts, byte[] trailer){
+        if (asyncEnabled && request.isAsyncSupported()) {
+            streamFileAsync(file, client, request, response, parts, trailer);
+        } else {
+            streamFileBlocking(file, client, response, parts, trailer);
+        }
+    }
+
+    /**
+     * Once the writer exists it owns the file, the bandwidth registration and the async context, so a failure
+     * after that point is cleaned up by aborting the writer
+     */
+    private void streamFileAsync(Path file, MovieClient client, HttpServletRequest request, HttpServletResponse response, List<RangePart> parts, byte[] trailer){
+        FileChannel input = null;
+        AsyncContext asyncContext = null;
+        BandwidthScheduler.StreamBandwidth bandwidth = null;
+        AsyncStreamWriter writer = null;
+        try {
+            input = FileChannel.open(file, StandardOpenOption.READ);
+            ServletOutputStream output = response.getOutputStream();
+
+            asyncContext = request.startAsync();
+            asyncContext.setTimeout(asyncTimeout);
+
+            bandwidth = bandwidthScheduler.register(client);
+            writer = new AsyncStreamWriter(asyncContext, output, input, parts.iterator(), trailer, asyncChunkSize,
+                    bandwidthScheduler, bandwidth, activeStreamGauge, activeWriterGauge, parkedWriterGauge);
+            asyncContext.addListener(writer);
+            output.setWriteListener(writer);
+        } catch (IOException | IllegalStateException e) {
+            logger.error("Failure starting async stream", e);
+            if (writer != null) {
+                writer.abort();
+                return;
             }
 
+            if (bandwidth != null)
+                bandwidth.close();
+            if (asyncContext != null)
+                asyncContext.complete();
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException closeException) {
+                    logger.error("Failure closing video file", closeException);
+                }
+            }
+        }
+    }
+
+    private void streamFileBlocking(Path file, MovieClient client, HttpServletResponse response, List<RangePart> parts, byte[] trailer){
+        activeStreamGauge.getAndIncrement();
+        try (FileChannel input = FileChannel.open(file, StandardOpenOption.READ);
+             OutputStream output = response.getOutputStream();
+             BandwidthScheduler.StreamBandwidth bandwidth = bandwidthScheduler.register(client)) {
+
+            WritableByteChannel outputChannel = Channels.newChannel(output);
+            for (RangePart part : parts) {
+                output.write(part.header);
+                if (part.isCached()) {
+                    int cachedLength = part.cached.remaining();
+                    awaitBandwidth(bandwidth.reserve(cachedLength));
+                    while (part.cached.hasRemaining()) {
+                        outputChannel.write(part.cached);
+                    }
+                    bandwidth.sent(cachedLength);
+                }
+
+                transfer(input, outputChannel, bandwidth, part.range.getStart(), part.range.getLength());
+            }
+            output.write(trailer);
+
         } catch (IOException e) {
             logger.error("Failure streaming video", e);
         } finally {
             activeStreamGauge.getAndDecrement();
         }
     }
-}
\ No newline at end of file
+
+    private void transfer(FileChannel input, WritableByteChannel output, BandwidthScheduler.StreamBandwidth bandwidth,
+                          long position, long length) throws IOException {
+        long transferSize = bandwidthScheduler.isEnabled() ? THROTTLED_TRANSFER_SIZE : MAX_TRANSFER_SIZE;
+        long remaining = length;
+        while (remaining > 0) {
+            long chunkLength = Math.min(remaining, transferSize);
+            awaitBandwidth(bandwidth.reserve(chunkLength));
+
+            long transferred = input.transferTo(position, chunkLength, output);
+            if (transferred <= 0)
+                throw new EOFException("File truncated while streaming at position " + position);
+
+            bandwidth.sent(transferred);
+            position += transferred;
+            remaining -= transferred;
+        }
+    }
+
+    private void awaitBandwidth(long delayNanos) throws IOException {
+        if (delayNanos <= 0)
+            return;
+
+        try {
+            TimeUnit.NANOSECONDS.sleep(delayNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for stream bandwidth");
+        }
+    }
+
+    static class RangePart {
+        private final byte[] header;
+        private final ByteBuffer cached;
+        private final ByteRange range;
+
+        private RangePart(byte[] header, ByteBuffer cached, ByteRange range) {
+            this.header = header;
+            this.cached = cached;
+            this.range = range;
+        }
+
+        byte[] getHeader() {
+            return header;
+        }
+
+        boolean isCached() {
+            return cached != null;
+        }
+
+        /**
+         * @return - Bytes served from memory ahead of the file range, may be null
+         */
+        ByteBuffer getCached() {
+            return cached;
+        }
+
+        ByteRange getRange() {
+            return range;
+        }
+    }
+}
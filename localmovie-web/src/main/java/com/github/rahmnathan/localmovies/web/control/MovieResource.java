@@ -1,34 +1,56 @@
 package com.github.rahmnathan.localmovies.web.control;
 
+import com.github.rahmnathan.localmovie.domain.KeyframePosition;
 import com.github.rahmnathan.localmovie.domain.MediaFile;
 import com.github.rahmnathan.localmovie.domain.MediaFileEvent;
+import com.github.rahmnathan.localmovie.domain.MovieClient;
 import com.github.rahmnathan.localmovie.domain.MovieInfoRequest;
 import com.github.rahmnathan.localmovie.domain.MovieSearchCriteria;
+import com.github.rahmnathan.localmovie.domain.PosterRequest;
+import com.github.rahmnathan.localmovie.domain.PosterSize;
+import com.github.rahmnathan.localmovie.service.boundary.FileListProvider;
 import com.github.rahmnathan.localmovie.service.boundary.MediaMetadataService;
+import com.github.rahmnathan.localmovie.service.boundary.PosterStore;
+import com.github.rahmnathan.localmovies.event.control.KeyframeIndexer;
 import com.github.rahmnathan.localmovies.event.control.MediaFileEventManager;
 import com.github.rahmnathan.localmovies.event.control.PushNotificationHandler;
 import com.github.rahmnathan.localmovies.event.data.AndroidPushClient;
+import com.github.rahmnathan.localmovies.event.data.KeyframeIndex;
+import com.github.rahmnathan.localmovies.web.config.FieldProjection;
 import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.Metrics;
 import org.apache.http.HttpHeaders;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
-import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.ServletWebRequest;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.io.File;
-import java.nio.file.Paths;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
-import java.util.Base64;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 @RestController
 public class MovieResource {
@@ -36,28 +58,51 @@ public class MovieResource {
     private final PushNotificationHandler notificationHandler;
     private static final String TRANSACTION_ID = "TransactionID";
     private final MediaMetadataService mediaMetadataService;
-    private final FileSender fileSender = new FileSender();
+    private final FileSender fileSender;
     private final MediaFileEventManager eventManager;
-    private final String[] mediaPaths;
+    private final KeyframeIndexer keyframeIndexer;
+    private final PosterStore posterStore;
+    private final CatalogResponseCache responseCache;
+    private final FileListProvider fileListProvider;
 
     private static final Counter MOVIES_COUNTER = Metrics.counter("localmovies.movies.request.counter");
     private static final Counter COUNT_COUNTER = Metrics.counter("localmovies.count.request.counter");
     private static final Counter POSTER_COUNTER = Metrics.counter("localmovies.poster.request.counter");
     private static final Counter STREAM_COUNTER = Metrics.counter("localmovies.stream.request.counter");
     private static final Counter EVENTS_COUNTER = Metrics.counter("localmovies.events.request.counter");
+    private static final Counter POSTERS_COUNTER = Metrics.counter("localmovies.posters.request.counter");
+    private static final Counter KEYFRAME_COUNTER = Metrics.counter("localmovies.keyframe.request.counter");
+    private static final Counter SEARCH_COUNTER = Metrics.counter("localmovies.search.request.counter");
+    private static final int MAX_SEARCH_RESULTS_PER_PAGE = 100;
+    private static final int MAX_POSTERS_PER_REQUEST = 100;
+    private static final int POSTER_SIGNATURE_LENGTH = 8;
+    private static final String KEYFRAME_RETRY_SECONDS = "5";
+    private static final String NO_CACHE_CONTROL = CacheControl.noCache().getHeaderValue();
+    private static final String IMMUTABLE_CACHE_CONTROL = CacheControl.maxAge(365, TimeUnit.DAYS).cachePublic().getHeaderValue() + ", immutable";
 
 
     public MovieResource(MediaMetadataService mediaMetadataService, PushNotificationHandler notificationHandler,
-                         @Value("${media.path}") String[] mediaPaths,
-                         MediaFileEventManager eventManager){
+                         FileListProvider fileListProvider, MediaFileEventManager eventManager, FileSender fileSender, KeyframeIndexer keyframeIndexer,
+                         PosterStore posterStore, CatalogResponseCache responseCache){
         this.notificationHandler = notificationHandler;
         this.mediaMetadataService = mediaMetadataService;
         this.eventManager = eventManager;
-        this.mediaPaths = mediaPaths;
+        this.fileListProvider = fileListProvider;
+        this.fileSender = fileSender;
+        this.keyframeIndexer = keyframeIndexer;
+        this.posterStore = posterStore;
+        this.responseCache = responseCache;
     }
 
+    /**
+     * @param movieInfoRequest - Directory, order, filters and either a page number or the Next-Cursor header of the previous page
+     * @param fields - Comma separated properties to include, like "path,posterUrl,movie.title". Defaults to all of them
+     * @return - Page of media in the directory
+     */
     @PostMapping(value = "/localmovies/v2/movies", produces=MediaType.APPLICATION_JSON_VALUE, consumes = MediaType.APPLICATION_JSON_VALUE)
-    public List<MediaFile> getMovies(@RequestBody MovieInfoRequest movieInfoRequest, HttpServletResponse response) {
+    public ResponseEntity<byte[]> getMovies(@RequestBody MovieInfoRequest movieInfoRequest,
+                                            @RequestParam(value = "fields", required = false) String fields,
+                                            @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding) {
         MDC.put(TRANSACTION_ID, UUID.randomUUID().toString());
         MOVIES_COUNTER.increment();
         logger.info("Received request: {}", movieInfoRequest.toString());
@@ -68,17 +113,73 @@ public class MovieResource {
         }
 
         MovieSearchCriteria searchCriteria = new MovieSearchCriteria(movieInfoRequest.getPath(), movieInfoRequest.getPage(),
-                movieInfoRequest.getResultsPerPage(), movieInfoRequest.getClient(), movieInfoRequest.getOrder());
+                movieInfoRequest.getResultsPerPage(), movieInfoRequest.getClient(), movieInfoRequest.getOrder(),
+                movieInfoRequest.getYearFrom(), movieInfoRequest.getYearTo(), movieInfoRequest.getMinRating(),
+                movieInfoRequest.getGenres(), movieInfoRequest.getCursor());
+
+        FieldProjection projection = FieldProjection.parse(fields).orElse(null);
+        CatalogResponseCache.CatalogResponse catalogResponse;
+        try {
+            catalogResponse = responseCache.get(searchCriteria, projection);
+        } catch (IllegalArgumentException e) {
+            logger.info("Rejecting request - {}", e.getMessage());
+            MDC.clear();
+            return ResponseEntity.badRequest().build();
+        }
+
+        ResponseEntity.BodyBuilder builder = ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+
+        if(catalogResponse.getCount() != null)
+            builder.header("Count", String.valueOf(catalogResponse.getCount()));
+        if(catalogResponse.getNextCursor() != null)
+            builder.header("Next-Cursor", catalogResponse.getNextCursor());
+
+        byte[] body = catalogResponse.getJson();
+        if(catalogResponse.getGzip() != null && acceptsGzip(acceptEncoding)) {
+            builder.header(HttpHeaders.CONTENT_ENCODING, "gzip");
+            body = catalogResponse.getGzip();
+        }
+
+        logger.info("Returning {} movies", catalogResponse.getSize());
+        MDC.clear();
+        return builder.body(body);
+    }
+
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if(acceptEncoding == null)
+            return false;
+
+        for(String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.trim().split(";");
+            if(parts[0].trim().equalsIgnoreCase("gzip"))
+                return parts.length == 1 || !parts[1].replace(" ", "").matches("q=0(\\.0*)?");
+        }
 
-        Integer page = searchCriteria.getPage();
-        if(page != null && page == 0)
-            getMovieCount(movieInfoRequest.getPath(), response);
+        return false;
+    }
+
+    /**
+     * @param query - Free text query over titles, actors, genres and plots, tolerant of prefixes and typos
+     * @param page - Zero based page number
+     * @param resultsPerPage - Page size
+     * @return - Matching media, best match first
+     */
+    @GetMapping(value = "/localmovies/v2/movies/search", produces=MediaType.APPLICATION_JSON_VALUE)
+    public List<MediaFile> searchMovies(@RequestParam("q") String query,
+                                        @RequestParam(value = "page", defaultValue = "0") int page,
+                                        @RequestParam(value = "resultsPerPage", defaultValue = "20") int resultsPerPage) {
+        MDC.put(TRANSACTION_ID, UUID.randomUUID().toString());
+        SEARCH_COUNTER.increment();
+        logger.info("Received search request - query: {} page: {} resultsPerPage: {}", query, page, resultsPerPage);
 
-        List<MediaFile> movieInfoList = mediaMetadataService.loadMediaFileList(searchCriteria);
+        List<MediaFile> results = mediaMetadataService.searchMediaFiles(query, Math.max(page, 0),
+                Math.max(1, Math.min(resultsPerPage, MAX_SEARCH_RESULTS_PER_PAGE)));
 
-        logger.info("Returning {} movies", movieInfoList.size());
+        logger.info("Returning {} search results", results.size());
         MDC.clear();
-        return movieInfoList;
+        return results;
     }
 
     @GetMapping(value = "/localmovies/v2/movies/count")
@@ -95,44 +196,206 @@ public class MovieResource {
 
     /**
      * @param path - Path to video file to stream
+     * @param client - Client type, used to weight this stream's share of the available bandwidth
      */
     @GetMapping(value = "/localmovies/v2/movie/stream.mp4", produces = "video/mp4")
-    public void streamVideo(@RequestParam("path") String path, HttpServletResponse response, HttpServletRequest request) {
+    public void streamVideo(@RequestParam("path") String path, @RequestParam(value = "client", required = false) MovieClient client,
+                            HttpServletResponse response, HttpServletRequest request) {
         MDC.put(TRANSACTION_ID, UUID.randomUUID().toString());
         STREAM_COUNTER.increment();
         response.setHeader("Access-Control-Allow-Origin", "*");
 
-        MediaFile movie = mediaMetadataService.loadSingleMediaFile(path);
-        movie.addView();
         logger.info("Received streaming request - {}", path);
-        for(String mediaPath : mediaPaths) {
-            if (new File(mediaPath + path).exists()) {
-                logger.info("Streaming - {}{}", mediaPath, path);
+        Optional<MediaFile> movie = mediaMetadataService.loadSingleMediaFile(path);
+        if (!movie.isPresent()) {
+            logger.info("Not in library - {}", path);
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            MDC.clear();
+            return;
+        }
+
+        movie.get().addView();
+        Optional<Path> file = findMediaFile(path);
+        if (file.isPresent()) {
+            logger.info("Streaming - {}", file.get());
+            try {
+                ResourceValidator validator = ResourceValidator.forMediaFile(file.get(), movie.get());
                 response.setHeader(HttpHeaders.CONTENT_TYPE, "video/mp4");
-                fileSender.serveResource(Paths.get(mediaPath + path), request, response);
-                break;
+                fileSender.serveResource(file.get(), validator, client, request, response);
+            } catch (IOException e) {
+                logger.error("Failure reading file attributes", e);
+                response.setStatus(HttpServletResponse.SC_NOT_FOUND);
             }
         }
         MDC.clear();
     }
 
     /**
+     * @param path - Path to an MP4 file
+     * @param seconds - Requested seek position
+     * @return - Time and byte offset of the last keyframe at or before the requested position, or 503 while the
+     * file's keyframe index is being built
+     */
+    @GetMapping(value = "/localmovies/v2/movie/keyframe", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<KeyframePosition> getKeyframe(@RequestParam("path") String path, @RequestParam("seconds") double seconds) {
+        MDC.put(TRANSACTION_ID, UUID.randomUUID().toString());
+        KEYFRAME_COUNTER.increment();
+        logger.info("Received keyframe request - {} at {}s", path, seconds);
+
+        Optional<Path> file = findMediaFile(path);
+        Optional<KeyframeIndex> index = file.flatMap(keyframeIndexer::getIndex);
+        if (!index.isPresent() && file.isPresent() && keyframeIndexer.isPending(file.get())) {
+            logger.info("Keyframe index not ready - {}", path);
+            MDC.clear();
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, KEYFRAME_RETRY_SECONDS)
+                    .build();
+        }
+
+        int keyframe = index.map(keyframeIndex -> keyframeIndex.findKeyframe(seconds)).orElse(-1);
+        if (keyframe < 0) {
+            MDC.clear();
+            return ResponseEntity.notFound().build();
+        }
+
+        KeyframePosition position = new KeyframePosition(index.get().getKeyframeTime(keyframe), index.get().getKeyframeOffset(keyframe));
+        MDC.clear();
+        return ResponseEntity.ok(position);
+    }
+
+    private Optional<Path> findMediaFile(String path) {
+        return fileListProvider.resolve(path);
+    }
+
+    /**
+     * Redirects to the poster by hash, which clients can keep forever, or writes an empty body if there is none
      * @param path - Path to video file
-     * @return - Poster image for specified video file
+     * @param size - Poster size, defaults to the original image
      */
     @GetMapping(path = "/localmovies/v2/movie/poster")
-    public ResponseEntity<byte[]> getPoster(@RequestParam("path") String path) {
+    public void getPoster(@RequestParam("path") String path, @RequestParam(value = "size", required = false) PosterSize size,
+                          HttpServletRequest request, HttpServletResponse response) throws IOException {
         MDC.put(TRANSACTION_ID, UUID.randomUUID().toString());
         POSTER_COUNTER.increment();
         logger.info("Streaming poster - {}", path);
 
-        String image = mediaMetadataService.loadSingleMediaFile(path).getMovie().getImage();
-        if(image == null)
-            return ResponseEntity.ok(new byte[0]);
+        Optional<MediaFile> mediaFile = mediaMetadataService.loadSingleMediaFile(path);
+        if (!mediaFile.isPresent()) {
+            logger.info("Not in library - {}", path);
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+        } else if (mediaFile.get().getPosterHash() == null) {
+            response.setContentLength(0);
+        } else {
+            // The path's poster can change, so only the redirect is revalidated
+            response.setHeader(HttpHeaders.CACHE_CONTROL, NO_CACHE_CONTROL);
+            response.sendRedirect(buildPosterUrl(request, mediaFile.get().getPosterHash(), size));
+        }
+        MDC.clear();
+    }
 
-        byte[] poster = Base64.getDecoder().decode(image);
+    /**
+     * Writes the poster image, which never changes for a given hash
+     * @param hash - Content hash of the poster, as returned in MediaFile.posterHash
+     * @param size - Poster size, defaults to the original image
+     */
+    @GetMapping(path = "/localmovies/v2/poster/{hash}")
+    public void getPosterByHash(@PathVariable("hash") String hash, @RequestParam(value = "size", required = false) PosterSize size,
+                                HttpServletRequest request, HttpServletResponse response) {
+        MDC.put(TRANSACTION_ID, UUID.randomUUID().toString());
+        POSTER_COUNTER.increment();
+        logger.info("Streaming poster by hash - {}", hash);
+
+        if (!posterStore.getPoster(hash).isPresent()) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+        } else {
+            servePoster(hash, size, request, response);
+        }
         MDC.clear();
-        return ResponseEntity.ok(poster);
+    }
+
+    private void servePoster(String hash, PosterSize size, HttpServletRequest request, HttpServletResponse response) {
+        String cacheControl = IMMUTABLE_CACHE_CONTROL;
+        String eTag = size == null || size == PosterSize.ORIGINAL ? hash : hash + "-" + size.name().toLowerCase();
+        Optional<Path> poster = posterStore.getPoster(hash, size);
+        if (!poster.isPresent()) {
+            // The requested size is still being rendered, so send the original without letting clients keep it
+            eTag = hash;
+            cacheControl = NO_CACHE_CONTROL;
+            poster = posterStore.getPoster(hash);
+        }
+
+        if (!poster.isPresent()) {
+            response.setContentLength(0);
+            return;
+        }
+
+        // Posters are small local files, so they're transferred directly rather than through the throttled video streams
+        try {
+            ResourceValidator validator = ResourceValidator.forContent(poster.get(), eTag);
+            response.setHeader(HttpHeaders.CACHE_CONTROL, cacheControl);
+            if (new ServletWebRequest(request, response).checkNotModified(validator.getETag(), validator.getLastModified())) {
+                logger.info("Client copy is current - {}", validator.getETag());
+                return;
+            }
+
+            transferPoster(poster.get(), response);
+        } catch (IOException e) {
+            logger.error("Failure sending poster", e);
+            if (!response.isCommitted())
+                response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+        }
+    }
+
+    private void transferPoster(Path poster, HttpServletResponse response) throws IOException {
+        try (FileChannel input = FileChannel.open(poster, StandardOpenOption.READ)) {
+            ByteBuffer signature = ByteBuffer.allocate(POSTER_SIGNATURE_LENGTH);
+            input.read(signature, 0);
+            String mediaType = PosterStore.getMediaType(Arrays.copyOf(signature.array(), signature.position()));
+            response.setContentType(mediaType == null ? MediaType.APPLICATION_OCTET_STREAM_VALUE : mediaType);
+
+            long length = input.size();
+            response.setHeader(HttpHeaders.CONTENT_LENGTH, String.valueOf(length));
+            WritableByteChannel output = Channels.newChannel(response.getOutputStream());
+            long position = 0;
+            while (position < length) {
+                long transferred = input.transferTo(position, length - position, output);
+                if (transferred <= 0)
+                    throw new EOFException("Poster truncated at position " + position);
+
+                position += transferred;
+            }
+        }
+    }
+
+    /**
+     * Resolves the poster URLs for a page of results in one request
+     * @param posterRequest - Hashes of the posters on the client's visible page, and the size to send
+     * @return - URLs of the posters keyed by hash. Unknown hashes are left out
+     */
+    @PostMapping(value = "/localmovies/v2/posters", produces = MediaType.APPLICATION_JSON_VALUE, consumes = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<Map<String, String>> getPosters(@RequestBody PosterRequest posterRequest, HttpServletRequest request) {
+        MDC.put(TRANSACTION_ID, UUID.randomUUID().toString());
+        POSTERS_COUNTER.increment();
+        logger.info("Received request for {} posters", posterRequest.getHashes().size());
+
+        if (posterRequest.getHashes().size() > MAX_POSTERS_PER_REQUEST) {
+            MDC.clear();
+            return ResponseEntity.badRequest().build();
+        }
+
+        // Only references are returned, so the posters themselves are fetched and cached by hash like any single poster
+        Map<String, String> posters = new LinkedHashMap<>();
+        for (String hash : new LinkedHashSet<>(posterRequest.getHashes())) {
+            if (posterStore.getPoster(hash).isPresent())
+                posters.put(hash, buildPosterUrl(request, hash, posterRequest.getSize()));
+        }
+
+        MDC.clear();
+        return ResponseEntity.ok(posters);
+    }
+
+    private static String buildPosterUrl(HttpServletRequest request, String hash, PosterSize size) {
+        return request.getContextPath() + "/localmovies/v2/poster/" + hash + (size == null ? "" : "?size=" + size.name());
     }
 
     @GetMapping(path = "/localmovies/v2/movie/events")
@@ -0,0 +1,77 @@
+package com.github.rahmnathan.localmovies.web.control;
+
+import com.github.rahmnathan.localmovie.domain.MediaFile;
+import org.apache.http.HttpHeaders;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Validators for a served file - a strong ETag built from the file size, its modification time and the
+ * version of its metadata, plus the modification time for Last-Modified based validation.
+ */
+public class ResourceValidator {
+    private final long size;
+    private final long lastModified;
+    private final String eTag;
+
+    private ResourceValidator(long size, long lastModified, String eTag) {
+        this.lastModified = lastModified;
+        this.size = size;
+        this.eTag = eTag;
+    }
+
+    public static ResourceValidator forMediaFile(Path file, MediaFile mediaFile) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        long size = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        long version = mediaFile == null ? 0 : mediaFile.getVersion();
+
+        String eTag = "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "-" + Long.toHexString(version) + "\"";
+        return new ResourceValidator(size, lastModified, eTag);
+    }
+
+    /**
+     * @param file - Content addressed file, which never changes once written
+     * @param hash - Content hash of the file, used as its entity tag
+     */
+    public static ResourceValidator forContent(Path file, String hash) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        return new ResourceValidator(attributes.size(), attributes.lastModifiedTime().toMillis(), "\"" + hash + "\"");
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public String getETag() {
+        return eTag;
+    }
+
+    /**
+     * A Range header only applies if the If-Range validator, when present, still matches the file.
+     * Entity tags must match exactly and dates must equal the modification time to the second.
+     */
+    boolean isRangeApplicable(HttpServletRequest request) {
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange == null)
+            return true;
+
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/"))
+            return ifRange.equals(eTag);
+
+        try {
+            long ifRangeDate = request.getDateHeader(HttpHeaders.IF_RANGE);
+            return ifRangeDate / 1000 == lastModified / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.github.rahmnathan.localmovies.web.control;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket measured in bytes. Reservations may overdraw the bucket - the caller is told how long
+ * to wait before sending so that the average rate never exceeds the configured limit.
+ */
+class TokenBucket {
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    private double bytesPerSecond;
+    private double tokens;
+    private long lastRefill;
+
+    TokenBucket(double bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.tokens = bytesPerSecond;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * @param bytes - Number of bytes about to be sent
+     * @return - Nanoseconds to wait before sending them, zero if they can be sent now
+     */
+    synchronized long reserve(long bytes) {
+        if (bytesPerSecond <= 0)
+            return 0;
+
+        refill();
+        tokens -= bytes;
+        if (tokens >= 0)
+            return 0;
+
+        return (long) (-tokens / bytesPerSecond * NANOS_PER_SECOND);
+    }
+
+    synchronized void setRate(double bytesPerSecond) {
+        refill();
+        this.bytesPerSecond = bytesPerSecond;
+        this.tokens = Math.min(tokens, bytesPerSecond);
+    }
+
+    synchronized double getRate() {
+        return bytesPerSecond;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        if (bytesPerSecond > 0) {
+            // The bucket holds at most one second worth of tokens
+            tokens = Math.min(bytesPerSecond, tokens + (now - lastRefill) * bytesPerSecond / NANOS_PER_SECOND);
+        }
+        lastRefill = now;
+    }
+}
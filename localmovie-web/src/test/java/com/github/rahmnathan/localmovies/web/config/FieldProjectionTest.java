@@ -0,0 +1,57 @@
+package com.github.rahmnathan.localmovies.web.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.rahmnathan.localmovie.domain.MediaFile;
+import com.github.rahmnathan.omdb.data.Movie;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+public class FieldProjectionTest {
+    private ObjectMapper objectMapper;
+    private List<MediaFile> mediaFiles;
+
+    @BeforeEach
+    public void initialize() {
+        objectMapper = new ObjectMapper()
+                .addMixIn(MediaFile.class, FieldProjection.Projectable.class)
+                .addMixIn(Movie.class, FieldProjection.Projectable.class)
+                .setFilterProvider(FieldProjection.ALL_FIELDS);
+
+        mediaFiles = Collections.singletonList(MediaFile.Builder.newInstance()
+                .setPath("Movies/Heat.mp4")
+                .setFileName("Heat.mp4")
+                .setMovie(Movie.Builder.newInstance().setTitle("Heat").setPlot("A heist").setIMDBRating("8.3").build())
+                .build());
+    }
+
+    @Test
+    public void nestedFieldsTest() throws Exception {
+        FieldProjection projection = FieldProjection.parse("path, movie.title,movie.imdbRating").orElseThrow(AssertionError::new);
+        String json = objectMapper.writer(projection.getFilterProvider()).writeValueAsString(mediaFiles);
+
+        Assertions.assertEquals("[{\"path\":\"Movies/Heat.mp4\",\"movie\":{\"title\":\"Heat\",\"imdbRating\":\"8.3\"}}]", json);
+    }
+
+    @Test
+    public void wholeObjectTest() throws Exception {
+        FieldProjection projection = FieldProjection.parse("movie").orElseThrow(AssertionError::new);
+        String json = objectMapper.writer(projection.getFilterProvider()).writeValueAsString(mediaFiles);
+
+        Assertions.assertTrue(json.contains("\"plot\":\"A heist\""));
+        Assertions.assertFalse(json.contains("path"));
+    }
+
+    @Test
+    public void defaultTest() throws Exception {
+        String json = objectMapper.writeValueAsString(mediaFiles);
+
+        Assertions.assertTrue(json.contains("\"path\":\"Movies/Heat.mp4\""));
+        Assertions.assertTrue(json.contains("\"plot\":\"A heist\""));
+        Assertions.assertFalse(FieldProjection.parse(" , ").isPresent());
+        Assertions.assertEquals(FieldProjection.parse("path,movie.title"), FieldProjection.parse("movie.title,path"));
+    }
+}
@@ -0,0 +1,66 @@
+package com.github.rahmnathan.localmovies.web.control;
+
+import com.github.rahmnathan.localmovie.domain.MovieClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class BandwidthSchedulerTest {
+    private BandwidthScheduler scheduler;
+
+    @BeforeEach
+    public void initialize() {
+        scheduler = new BandwidthScheduler(1_000_000, 0, 1, 1);
+    }
+
+    @AfterEach
+    public void shutdown() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void fairShareTest() {
+        BandwidthScheduler.StreamBandwidth first = scheduler.register(MovieClient.WEBAPP);
+        BandwidthScheduler.StreamBandwidth second = scheduler.register(MovieClient.ANDROID);
+
+        Assertions.assertEquals(500_000, first.getRate(), 1);
+        Assertions.assertEquals(500_000, second.getRate(), 1);
+
+        second.close();
+        Assertions.assertEquals(1_000_000, first.getRate(), 1);
+    }
+
+    @Test
+    public void unusedShareTest() throws InterruptedException {
+        BandwidthScheduler.StreamBandwidth busy = scheduler.register(MovieClient.WEBAPP);
+        BandwidthScheduler.StreamBandwidth slow = scheduler.register(MovieClient.ANDROID);
+
+        // The busy stream overdraws its bucket while the slow one barely sends
+        Thread.sleep(200);
+        Assertions.assertTrue(busy.reserve(2_000_000) > 0);
+        slow.sent(1000);
+        scheduler.rebalance(true);
+
+        Assertions.assertEquals(64 * 1024, slow.getRate(), 1);
+        Assertions.assertEquals(1_000_000 - 64 * 1024, busy.getRate(), 1);
+    }
+
+    @Test
+    public void streamSlotTest() {
+        BandwidthScheduler.StreamBandwidth first = scheduler.register(MovieClient.WEBAPP);
+        BandwidthScheduler.StreamBandwidth second = scheduler.register(MovieClient.ANDROID);
+        first.sent(100_000);
+
+        first.close();
+        Assertions.assertTrue(Double.isNaN(scheduler.getSlotThroughput(0)));
+        Assertions.assertEquals(0, scheduler.getSlotThroughput(1), 0);
+
+        // A new stream takes the free slot rather than adding a gauge
+        BandwidthScheduler.StreamBandwidth third = scheduler.register(MovieClient.WEBAPP);
+        Assertions.assertEquals(0, scheduler.getSlotThroughput(0), 0);
+
+        second.close();
+        third.close();
+    }
+}
@@ -0,0 +1,65 @@
+package com.github.rahmnathan.localmovies.web.control;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Optional;
+
+public class ByteRangeTest {
+
+    @Test
+    public void noRangeHeaderTest(){
+        Optional<List<ByteRange>> ranges = ByteRange.parse(null, 1000);
+
+        Assertions.assertTrue(ranges.isPresent());
+        Assertions.assertTrue(ranges.get().isEmpty());
+    }
+
+    @Test
+    public void boundedRangeTest(){
+        List<ByteRange> ranges = ByteRange.parse("bytes=100-199", 1000).get();
+
+        Assertions.assertEquals(1, ranges.size());
+        Assertions.assertEquals(100, ranges.get(0).getStart());
+        Assertions.assertEquals(199, ranges.get(0).getEnd());
+        Assertions.assertEquals(100, ranges.get(0).getLength());
+    }
+
+    @Test
+    public void openEndedRangeTest(){
+        List<ByteRange> ranges = ByteRange.parse("bytes=500-", 1000).get();
+
+        Assertions.assertEquals(999, ranges.get(0).getEnd());
+        Assertions.assertEquals("bytes 500-999/1000", ranges.get(0).toContentRange(1000));
+    }
+
+    @Test
+    public void suffixRangeTest(){
+        List<ByteRange> ranges = ByteRange.parse("bytes=-200", 1000).get();
+
+        Assertions.assertEquals(800, ranges.get(0).getStart());
+        Assertions.assertEquals(999, ranges.get(0).getEnd());
+    }
+
+    @Test
+    public void multipleRangesTest(){
+        List<ByteRange> ranges = ByteRange.parse("bytes=500-599, 0-99, 90-149", 1000).get();
+
+        Assertions.assertEquals(2, ranges.size());
+        Assertions.assertEquals(0, ranges.get(0).getStart());
+        Assertions.assertEquals(149, ranges.get(0).getEnd());
+        Assertions.assertEquals(500, ranges.get(1).getStart());
+    }
+
+    @Test
+    public void unsatisfiableRangeTest(){
+        Assertions.assertFalse(ByteRange.parse("bytes=1000-", 1000).isPresent());
+    }
+
+    @Test
+    public void malformedRangeTest(){
+        Assertions.assertTrue(ByteRange.parse("bytes=abc-", 1000).get().isEmpty());
+        Assertions.assertTrue(ByteRange.parse("bytes=500-100", 1000).get().isEmpty());
+    }
+}